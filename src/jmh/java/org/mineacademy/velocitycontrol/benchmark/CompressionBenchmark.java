@@ -0,0 +1,114 @@
+package org.mineacademy.velocitycontrol.benchmark;
+
+import org.mineacademy.velocitycontrol.network.Compression;
+import org.mineacademy.velocitycontrol.network.MapCodec;
+import org.mineacademy.velocitycontrol.network.PacketWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU cost of deflating and inflating a PLAYERS_CLUSTER_DATA body
+ * against the bytes it saves, for the json and the binary map form.
+ *
+ * The sizes before and after are printed on setup. Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "500", "2000", "10000" })
+	private int players;
+
+	@Param({ "json", "binary" })
+	private String form;
+
+	private byte[] body;
+	private byte[] deflated;
+
+	@Setup
+	public void setup() {
+		final Map<String, String> lines = createLines(this.players);
+
+		if ("json".equals(this.form))
+			this.body = MapCodec.toJson(lines).getBytes(StandardCharsets.UTF_8);
+
+		else {
+			final PacketWriter out = new PacketWriter(this.players * 128);
+
+			MapCodec.writeStrings(out, lines);
+			this.body = out.toByteArray();
+		}
+
+		this.deflated = this.deflate();
+
+		System.out.println(this.players + " players as " + this.form + ": " + this.body.length + " bytes, deflated " + this.deflated.length
+				+ " bytes (" + (100 * this.deflated.length / this.body.length) + "%)");
+	}
+
+	/**
+	 * The cost paid once per payload for all servers that negotiated compression
+	 */
+	@Benchmark
+	public byte[] deflate() {
+		final PacketWriter out = PacketWriter.borrow(this.body.length);
+
+		try {
+			Compression.compress(this.body, 0, this.body.length, out);
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * The cost paid by each receiving server
+	 */
+	@Benchmark
+	public int inflate() {
+		final PacketWriter out = PacketWriter.borrow(this.body.length);
+
+		try {
+			Compression.decompress(this.deflated, 0, this.deflated.length, this.body.length, out);
+
+			return out.size();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/*
+	 * Create sync lines shaped like the ones servers upload, most players keep the defaults
+	 */
+	private static Map<String, String> createLines(int players) {
+		final Random random = new Random(1);
+		final Map<String, String> lines = new HashMap<>();
+
+		for (int index = 0; index < players; index++)
+			lines.put("Player" + random.nextInt(1_000_000), "S:survival" + (index % 8) + ".<<N:" + (random.nextInt(20) == 0 ? "&c" + Integer.toHexString(random.nextInt()) : "")
+					+ ".<<V:0.<<A:" + (random.nextInt(10) == 0 ? 1 : 0) + ".<<IM:0.<<IN:0.<<IP:.<<C:global|standard.<<G:default.<<P:&7");
+
+		return lines;
+	}
+}
@@ -0,0 +1,105 @@
+package org.mineacademy.velocitycontrol.benchmark;
+
+import com.google.gson.Gson;
+import org.mineacademy.velocitycontrol.listener.IncomingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.MapCodec;
+import org.mineacademy.velocitycontrol.network.PacketReader;
+import org.mineacademy.velocitycontrol.network.PacketWriter;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Compares decoding the map of a received PLAYERS_CLUSTER_DATA packet in the json form
+ * legacy servers send and in the binary form, against the Gson HashMap decode used before.
+ *
+ * Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapDecodeBenchmark {
+
+	/**
+	 * Legacy packets cannot hold much more, the json is a single UTF string
+	 */
+	@Param({ "100", "500" })
+	private int entries;
+
+	private byte[] json;
+	private byte[] binary;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(1);
+		final Map<String, String> lines = new HashMap<>();
+
+		for (int index = 0; index < this.entries; index++)
+			lines.put("Player" + random.nextInt(1_000_000), "S:survival" + (index % 8) + ".<<N:.<<V:0");
+
+		this.json = createPacket(Protocol.LEGACY, 0, out -> out.writeUTF(MapCodec.toJson(lines)));
+		this.binary = createPacket(Protocol.COMPACT, Protocol.BINARY_MAPS, out -> MapCodec.writeStrings(out, lines));
+	}
+
+	/**
+	 * The decode before binary maps, see the baseline IncomingMessage#readMap
+	 */
+	@Benchmark
+	public Object gsonHashMap() {
+		final IncomingMessage message = IncomingMessage.wrap(this.json);
+
+		message.readString();
+
+		return new Gson().fromJson(PacketReader.readUTF(this.json, PacketReader.skipUTF(this.json, message.getBodyOffset())), HashMap.class);
+	}
+
+	@Benchmark
+	public Object json() {
+		return read(this.json);
+	}
+
+	@Benchmark
+	public Object binary() {
+		return read(this.binary);
+	}
+
+	private static Map<String, String> read(byte[] data) {
+		final IncomingMessage message = IncomingMessage.wrap(data);
+		final Map<String, String> lines = new HashMap<>();
+
+		message.readString();
+		message.readStringMap(lines::put);
+
+		return lines;
+	}
+
+	private static byte[] createPacket(int version, int flags, Consumer<PacketWriter> map) {
+		final PacketWriter out = new PacketWriter(64 * 1024);
+
+		Protocol.writeHeader(out, version, flags, "Null", UUID.randomUUID(), "survival", ProxyPacket.PLAYERS_CLUSTER_DATA);
+		out.writeUTF("NICK");
+		map.accept(out);
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,75 @@
+package org.mineacademy.velocitycontrol.benchmark;
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import org.mineacademy.velocitycontrol.listener.IncomingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares routing a relayed packet by peeking its action against decoding
+ * the whole header the way the listener did before, for a legacy SPY packet.
+ *
+ * Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeekActionBenchmark {
+
+	private byte[] data;
+
+	@Setup
+	public void setup() {
+		final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+
+		out.writeUTF("Null");
+		out.writeUTF(UUID.randomUUID().toString());
+		out.writeUTF("survival-1");
+		out.writeUTF(ProxyPacket.SPY.name());
+		out.writeUTF("COMMAND");
+		out.writeUTF("global");
+		out.writeBoolean(true);
+		out.writeUTF("/tell Notch hello there");
+		out.writeUTF("{\"text\":\"json\"}");
+		out.writeUTF("[]");
+
+		this.data = out.toByteArray();
+	}
+
+	/**
+	 * The header decode every packet went through before, see the baseline IncomingMessage constructor
+	 */
+	@Benchmark
+	public void decodeHeader(Blackhole blackhole) {
+		final ByteArrayDataInput input = ByteStreams.newDataInput(new ByteArrayInputStream(this.data));
+
+		blackhole.consume(input.readUTF());
+		blackhole.consume(UUID.fromString(input.readUTF()));
+		blackhole.consume(input.readUTF());
+		blackhole.consume(ProxyPacket.getByName(input.readUTF()));
+	}
+
+	@Benchmark
+	public ProxyPacket peekAction() {
+		return IncomingMessage.peekAction(this.data);
+	}
+}
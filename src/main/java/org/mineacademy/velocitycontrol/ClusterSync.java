@@ -0,0 +1,445 @@
+package org.mineacademy.velocitycontrol;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.listener.OutgoingMessage;
+import org.mineacademy.velocitycontrol.listener.VelocityControlListener.SyncType;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.mineacademy.velocitycontrol.network.Relay;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
+import org.mineacademy.velocitycontrol.network.ServerRegistry;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the latest data line of each player for each {@link SyncType} uploaded by servers
+ * in {@link ProxyPacket#PLAYERS_CLUSTER_DATA}, and redistributes only what changed.
+ *
+ * Each entry carries the time it was written at and a later write replaces an earlier one,
+ * even when packets from different servers are handled out of order. Writes that do not
+ * change the line are ignored, so idle players cost nothing. Every
+ * {@link Settings.Network#Full_Sync_Interval} milliseconds, and when a server gets its first
+ * player, all entries are sent again to repair updates lost on the way.
+ *
+ * A line is seen by the cluster of the server the player is on, see {@link ServerRegistry#getServerOf(java.util.UUID)},
+ * or of the server that uploaded it if we do not know. The same line uploaded from another server
+ * moves it there, and the full sync moves the lines of players who switched clusters meanwhile.
+ *
+ * Servers that negotiated {@link Protocol#FEATURE_ANTI_ENTROPY} get the root of a {@link DataTree}
+ * over the entries every tick instead of the full resend. When theirs differs they walk down
+ * the tree with {@link ProxyPacket#DATA_TREE_REQUEST} and get only the buckets that differ.
+ *
+ * Packet handlers never lock. Entries are replaced by compare and set and changed names go to
+ * the current dirty buffer, which the tick swaps for an empty one before reading it, so that
+ * building and sending messages never holds up incoming data.
+ */
+public final class ClusterSync {
+
+	@Getter
+	private static final ClusterSync instance = new ClusterSync();
+
+	/**
+	 * The latest entries by sync type and player name, filled for all types and never modified itself
+	 */
+	private final Map<SyncType, Map<String, Entry>> entries = new EnumMap<>(SyncType.class);
+
+	/**
+	 * Names of players changed since the last tick by sync type, swapped as a whole by the tick
+	 */
+	private final AtomicReference<Map<SyncType, Set<String>>> dirty = new AtomicReference<>(newDirtyBuffer());
+
+	/**
+	 * When the next full sync is due, guarded by this
+	 */
+	private long nextFullSync;
+
+	/**
+	 * Hash trees over the entries by the server that uploaded them, combined into the tree
+	 * a cluster sees when asked for
+	 */
+	private final Map<String, DataTree> trees = new ConcurrentHashMap<>();
+
+	/**
+	 * The servers with players at the last tick to notice servers that need a full sync, guarded by this
+	 */
+	private ServerRegistry.Entry[] lastOccupied = new ServerRegistry.Entry[0];
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder changed = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder fullSyncs = new LongAdder();
+	private final LongAdder treeRequests = new LongAdder();
+
+	private ClusterSync() {
+		for (final SyncType syncType : SyncType.values())
+			this.entries.put(syncType, new ConcurrentHashMap<>());
+	}
+
+	private static Map<SyncType, Set<String>> newDirtyBuffer() {
+		final Map<SyncType, Set<String>> buffer = new EnumMap<>(SyncType.class);
+
+		for (final SyncType syncType : SyncType.values())
+			buffer.put(syncType, ConcurrentHashMap.newKeySet());
+
+		return buffer;
+	}
+
+	/**
+	 * Store the data line a server uploaded for the given player
+	 *
+	 * @param syncType
+	 * @param playerName
+	 * @param line
+	 * @param writtenAt when the server sent it, or when we received it
+	 * @param serverName the server that sent it, used to scope the line when we do not know where the player is
+	 */
+	public void accept(SyncType syncType, String playerName, String line, long writtenAt, String serverName) {
+		final Map<String, Entry> players = this.entries.get(syncType);
+		final int hash = DataTree.hash(syncType, playerName, line);
+		final String scope = getScope(playerName, serverName);
+
+		this.received.increment();
+
+		while (true) {
+			final Entry entry = players.get(playerName);
+
+			// The same line still counts when it comes from another cluster, servers there need it
+			if (entry != null && (entry.writtenAt > writtenAt || (entry.line.equals(line) && entry.serverName.equals(scope))))
+				return;
+
+			final int bucket = entry != null && entry.bucket >= 0 ? entry.bucket : getBucket(playerName);
+			final Entry created = new Entry(line, writtenAt, bucket, hash, scope);
+
+			// Another server wrote the same player meanwhile, compare again
+			if (entry == null ? players.putIfAbsent(playerName, created) != null : !players.replace(playerName, entry, created))
+				continue;
+
+			if (entry != null)
+				this.getTree(entry.serverName).toggle(entry.bucket, entry.hash);
+
+			this.getTree(scope).toggle(bucket, hash);
+			break;
+		}
+
+		final Map<SyncType, Set<String>> buffer = this.dirty.get();
+
+		buffer.get(syncType).add(playerName);
+
+		// The tick swapped buffers meanwhile and may have read the old one already
+		final Map<SyncType, Set<String>> current = this.dirty.get();
+
+		if (current != buffer)
+			current.get(syncType).add(playerName);
+
+		this.changed.increment();
+
+		SyncScheduler.getInstance().wakeUp();
+	}
+
+	private DataTree getTree(String serverName) {
+		final DataTree tree = this.trees.get(serverName);
+
+		return tree != null ? tree : this.trees.computeIfAbsent(serverName, name -> new DataTree());
+	}
+
+	/*
+	 * Return the buckets of the tree servers in the given cluster see
+	 */
+	private int[] getBuckets(int cluster) {
+		final int[] buckets = new int[DataTree.BUCKETS];
+
+		this.trees.forEach((serverName, tree) -> {
+			if (RoutingTable.canReachCluster(RoutingTable.getCluster(serverName), cluster))
+				tree.xorInto(buckets);
+		});
+
+		return buckets;
+	}
+
+	/*
+	 * Return the server whose cluster sees the lines of the given player, the one he is on
+	 * or else the given one that uploaded the line
+	 */
+	private static String getScope(String playerName, String serverName) {
+		final ServerRegistry.Entry current = VelocityControl.getServer().getPlayer(playerName)
+				.map(player -> ServerRegistry.getInstance().getServerOf(player.getUniqueId()))
+				.orElse(null);
+
+		return current != null ? current.getName() : serverName;
+	}
+
+	/*
+	 * Return the tree bucket of the given player, or -1 if he is not online
+	 */
+	private static int getBucket(String playerName) {
+		return VelocityControl.getServer().getPlayer(playerName).map(player -> DataTree.getBucket(player.getUniqueId())).orElse(-1);
+	}
+
+	/**
+	 * Send what changed since the last tick to all servers, or everything when a full sync is due
+	 * to servers that do not compare the {@link DataTree}. Servers only get the lines of players
+	 * in their own cluster and the global one.
+	 *
+	 * @return how many lines changed since the last tick
+	 */
+	public int tick() {
+		final Batch batch = this.collect();
+
+		if (batch.full) {
+			this.broadcast(batch.all, Protocol.FEATURE_ANTI_ENTROPY, false);
+
+			// Servers comparing the tree ask for what they miss instead
+			this.broadcast(batch.changes, Protocol.FEATURE_ANTI_ENTROPY, true);
+
+		} else
+			this.broadcast(batch.changes, 0, false);
+
+		(batch.full ? batch.all : batch.changes).forEach((syncType, players) -> SyncedCache.upload(syncType, this.getLines(players, RoutingTable.GLOBAL)));
+
+		Relay.broadcastByCluster(cluster -> newTreeMessage(0, 0, DataTree.getRoot(this.getBuckets(cluster))).compile(), Protocol.FEATURE_ANTI_ENTROPY, true);
+
+		int lines = 0;
+
+		for (final Map<String, Entry> changes : batch.changes.values())
+			lines += changes.size();
+
+		return lines;
+	}
+
+	/*
+	 * Send each server one message for each sync type with the lines its cluster sees
+	 */
+	private void broadcast(Map<SyncType, Map<String, Entry>> updates, int feature, boolean negotiated) {
+		updates.forEach((syncType, players) -> Relay.broadcastByCluster(cluster -> {
+			final HashMap<String, String> lines = this.getLines(players, cluster);
+
+			if (lines.isEmpty())
+				return null;
+
+			this.sent.add(lines.size());
+			return newDataMessage(syncType, lines).compile();
+
+		}, feature, negotiated));
+	}
+
+	/*
+	 * Return the lines of the given entries that servers in the given cluster see
+	 */
+	private HashMap<String, String> getLines(Map<String, Entry> players, int cluster) {
+		final HashMap<String, String> lines = new HashMap<>();
+
+		players.forEach((playerName, entry) -> {
+			if (RoutingTable.canReachCluster(RoutingTable.getCluster(entry.serverName), cluster))
+				lines.put(playerName, entry.line);
+		});
+
+		return lines;
+	}
+
+	/*
+	 * Take the lines to send this tick and swap the dirty buffer
+	 */
+	private synchronized Batch collect() {
+		final Map<SyncType, Set<String>> dirty = this.dirty.getAndSet(newDirtyBuffer());
+		final long now = System.currentTimeMillis();
+		final ServerRegistry.Entry[] occupied = ServerRegistry.getInstance().getOccupied();
+		final boolean full = now >= this.nextFullSync || this.hasNewServer(occupied);
+		final Map<SyncType, Map<String, Entry>> all = new EnumMap<>(SyncType.class);
+		final Map<SyncType, Map<String, Entry>> changes = new EnumMap<>(SyncType.class);
+
+		this.lastOccupied = occupied;
+
+		if (full) {
+			this.nextFullSync = now + Settings.getSettings().Network.Full_Sync_Interval;
+			this.refreshScopes();
+			this.fullSyncs.increment();
+
+			this.entries.forEach((syncType, players) -> {
+				if (!players.isEmpty())
+					all.put(syncType, new HashMap<>(players));
+			});
+		}
+
+		dirty.forEach((syncType, playerNames) -> {
+			final Map<String, Entry> players = this.entries.get(syncType);
+			final Map<String, Entry> changed = new HashMap<>();
+
+			for (final String playerName : playerNames) {
+				final Entry entry = players.get(playerName);
+
+				// Removed as offline above
+				if (entry != null)
+					changed.put(playerName, entry);
+			}
+
+			if (!changed.isEmpty())
+				changes.put(syncType, changed);
+		});
+
+		return new Batch(full, all, changes);
+	}
+
+	/*
+	 * Return true if a server got its first player since the last tick
+	 */
+	private boolean hasNewServer(ServerRegistry.Entry[] occupied) {
+		if (occupied == this.lastOccupied)
+			return false;
+
+		for (final ServerRegistry.Entry entry : occupied) {
+			boolean known = false;
+
+			for (final ServerRegistry.Entry last : this.lastOccupied)
+				if (last == entry) {
+					known = true;
+
+					break;
+				}
+
+			if (!known)
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * Forget the entries of players who left the network and move the entries of players
+	 * who switched servers to the tree of their current server
+	 */
+	private void refreshScopes() {
+		for (final Map<String, Entry> players : this.entries.values())
+			for (final Map.Entry<String, Entry> mapEntry : players.entrySet()) {
+				final Entry entry = mapEntry.getValue();
+				final Player player = VelocityControl.getServer().getPlayer(mapEntry.getKey()).orElse(null);
+
+				// Only change in the tree what was not replaced meanwhile
+				if (player == null) {
+					if (players.remove(mapEntry.getKey(), entry))
+						this.getTree(entry.serverName).toggle(entry.bucket, entry.hash);
+
+					continue;
+				}
+
+				final ServerRegistry.Entry current = ServerRegistry.getInstance().getServerOf(player.getUniqueId());
+
+				if (current != null && !current.getName().equals(entry.serverName)
+						&& players.replace(mapEntry.getKey(), entry, new Entry(entry.line, entry.writtenAt, entry.bucket, entry.hash, current.getName()))) {
+					this.getTree(entry.serverName).toggle(entry.bucket, entry.hash);
+					this.getTree(current.getName()).toggle(entry.bucket, entry.hash);
+				}
+			}
+	}
+
+	/**
+	 * Answer a {@link ProxyPacket#DATA_TREE_REQUEST} of the given server
+	 *
+	 * @param server
+	 * @param level
+	 * @param node
+	 */
+	public void answer(RegisteredServer server, int level, int node) {
+		final int cluster = RoutingTable.getCluster(server.getServerInfo().getName());
+
+		this.treeRequests.increment();
+
+		if ((level == 0 && node == 0) || (level == 1 && node >= 0 && node < DataTree.FANOUT))
+			Relay.send(server, newTreeMessage(level + 1, node * DataTree.FANOUT, DataTree.getChildren(this.getBuckets(cluster), level, node)).compile());
+
+		else if (level == DataTree.LEAF_LEVEL && node >= 0 && node < DataTree.BUCKETS) {
+			this.entries.forEach((syncType, players) -> {
+				final HashMap<String, String> lines = new HashMap<>();
+
+				players.forEach((playerName, entry) -> {
+					if (entry.bucket == node && RoutingTable.canReachCluster(RoutingTable.getCluster(entry.serverName), cluster))
+						lines.put(playerName, entry.line);
+				});
+
+				if (!lines.isEmpty()) {
+					Relay.send(server, newDataMessage(syncType, lines).compile());
+
+					this.sent.add(lines.size());
+				}
+			});
+
+			// Marks the end of the bucket
+			Relay.send(server, newTreeMessage(level, node, this.getBuckets(cluster)[node]).compile());
+
+		} else
+			Debugger.debug("packet", "Ignoring DATA_TREE_REQUEST for node " + node + " at level " + level + " from '" + server.getServerInfo().getName() + "'");
+	}
+
+	private static OutgoingMessage newDataMessage(SyncType syncType, HashMap<String, String> lines) {
+		final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CLUSTER_DATA);
+
+		message.writeString(syncType.toString());
+		message.writeStringMap(lines);
+
+		return message;
+	}
+
+	private static OutgoingMessage newTreeMessage(int level, int firstNode, int... hashes) {
+		final OutgoingMessage message = new OutgoingMessage(ProxyPacket.DATA_TREE);
+
+		message.writeInt(level);
+		message.writeInt(firstNode);
+		message.writeString(DataTree.format(hashes));
+
+		return message;
+	}
+
+	/**
+	 * Return the human readable sync statistics since startup
+	 *
+	 * @return
+	 */
+	public String getStatistics() {
+		return "Cluster sync: " + this.received.sum() + " lines received, " + this.changed.sum() + " changed, " + this.sent.sum() + " sent, " + this.fullSyncs.sum() + " full syncs, " + this.treeRequests.sum() + " tree requests";
+	}
+
+	/*
+	 * The latest line of one player, when it was written, the server whose cluster sees it and where it is in the tree
+	 */
+	private static final class Entry {
+
+		private final String line;
+		private final long writtenAt;
+		private final int bucket;
+		private final int hash;
+		private final String serverName;
+
+		private Entry(String line, long writtenAt, int bucket, int hash, String serverName) {
+			this.line = line;
+			this.writtenAt = writtenAt;
+			this.bucket = bucket;
+			this.hash = hash;
+			this.serverName = serverName;
+		}
+	}
+
+	/*
+	 * The lines to send in one tick
+	 */
+	private static final class Batch {
+
+		private final boolean full;
+		private final Map<SyncType, Map<String, Entry>> all;
+		private final Map<SyncType, Map<String, Entry>> changes;
+
+		private Batch(boolean full, Map<SyncType, Map<String, Entry>> all, Map<SyncType, Map<String, Entry>> changes) {
+			this.full = full;
+			this.all = all;
+			this.changes = changes;
+		}
+	}
+}
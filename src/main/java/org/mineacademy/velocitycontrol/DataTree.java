@@ -0,0 +1,134 @@
+package org.mineacademy.velocitycontrol;
+
+import org.mineacademy.velocitycontrol.listener.VelocityControlListener.SyncType;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A hash tree over the synced data lines of online players, see {@link ProxyPacket#DATA_TREE}.
+ *
+ * Lines fall into one of {@link #BUCKETS} buckets by the first byte of the player's unique id
+ * and a bucket hash is the xor of the hashes of its lines, so that it can be updated in place.
+ * The {@link #FANOUT} level 1 nodes and the root are the {@link Arrays#hashCode(int[])} of their
+ * children and computed when asked for. Buckets are updated atomically, so lines can change
+ * from any thread, while a root read during changes may be off until the next tick. Trees
+ * combine by xor of their buckets, so that each cluster can see the lines of some servers.
+ */
+final class DataTree {
+
+	/**
+	 * Children of each node
+	 */
+	static final int FANOUT = 16;
+
+	/**
+	 * Leaves of the tree, at level 2
+	 */
+	static final int BUCKETS = FANOUT * FANOUT;
+
+	/**
+	 * The deepest level, its nodes are buckets
+	 */
+	static final int LEAF_LEVEL = 2;
+
+	private final AtomicIntegerArray buckets = new AtomicIntegerArray(BUCKETS);
+
+	/**
+	 * Add or remove the hash of one line, since xor is its own inverse
+	 *
+	 * @param bucket the bucket, or -1 to do nothing
+	 * @param hash
+	 */
+	void toggle(int bucket, int hash) {
+		if (bucket >= 0)
+			this.buckets.accumulateAndGet(bucket, hash, (current, other) -> current ^ other);
+	}
+
+	/**
+	 * Xor the buckets of this tree into the given ones, to combine trees
+	 *
+	 * @param buckets
+	 */
+	void xorInto(int[] buckets) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+			buckets[bucket] ^= this.buckets.get(bucket);
+	}
+
+	/**
+	 * Return the children of the given node of the tree with the given buckets, the root is node 0 at level 0
+	 *
+	 * @param buckets
+	 * @param level 0 or 1
+	 * @param node
+	 * @return the hashes of nodes node * FANOUT to node * FANOUT + FANOUT - 1 one level deeper
+	 */
+	static int[] getChildren(int[] buckets, int level, int node) {
+		if (level == 0)
+			return getLevel1(buckets);
+
+		return Arrays.copyOfRange(buckets, node * FANOUT, node * FANOUT + FANOUT);
+	}
+
+	/**
+	 * Return the root hash of the tree with the given buckets
+	 *
+	 * @param buckets
+	 * @return
+	 */
+	static int getRoot(int[] buckets) {
+		return Arrays.hashCode(getLevel1(buckets));
+	}
+
+	private static int[] getLevel1(int[] buckets) {
+		final int[] nodes = new int[FANOUT];
+
+		for (int node = 0; node < FANOUT; node++)
+			nodes[node] = Arrays.hashCode(Arrays.copyOfRange(buckets, node * FANOUT, node * FANOUT + FANOUT));
+
+		return nodes;
+	}
+
+	/**
+	 * Return the bucket of the player with the given unique id
+	 *
+	 * @param uniqueId
+	 * @return
+	 */
+	static int getBucket(UUID uniqueId) {
+		return (int) (uniqueId.getMostSignificantBits() >>> 56);
+	}
+
+	/**
+	 * Return the hash of one data line
+	 *
+	 * @param syncType
+	 * @param playerName
+	 * @param line
+	 * @return
+	 */
+	static int hash(SyncType syncType, String playerName, String line) {
+		return PresenceSync.mix((playerName.hashCode() * 31 + syncType.name().hashCode()) * 31 + line.hashCode());
+	}
+
+	/**
+	 * Return the hashes as sent in {@link ProxyPacket#DATA_TREE}
+	 *
+	 * @param hashes
+	 * @return
+	 */
+	static String format(int... hashes) {
+		final StringBuilder builder = new StringBuilder(hashes.length * 9);
+
+		for (final int hash : hashes) {
+			if (builder.length() > 0)
+				builder.append(',');
+
+			builder.append(Integer.toHexString(hash));
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,244 @@
+package org.mineacademy.velocitycontrol;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.listener.OutgoingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.Payload;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.mineacademy.velocitycontrol.network.Relay;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells servers that negotiated {@link Protocol#FEATURE_PRESENCE} who joins and leaves
+ * the network as it happens, instead of sending them the full player list every sync tick.
+ *
+ * Every tick they get the player count and an order independent checksum of all players,
+ * see {@link ProxyPacket#PLAYERS_CHECKSUM}. A server that lost a delta counts otherwise
+ * and asks for the full list with {@link ProxyPacket#PLAYERS_SNAPSHOT_REQUEST}.
+ *
+ * Servers only see players on servers of their own cluster and the global one, see
+ * {@link RoutingTable#canReachCluster(int, int)}, and get deltas and checksums for those.
+ */
+public final class PresenceSync {
+
+	/**
+	 * The singleton, registered as a listener on startup
+	 */
+	@Getter
+	private static final PresenceSync instance = new PresenceSync();
+
+	/**
+	 * Players by their unique id, guarded by this
+	 */
+	private final Map<UUID, Member> players = new HashMap<>();
+
+	/**
+	 * The player count and xor of {@link #hash(String, UUID)} of players on each server, guarded by this
+	 */
+	private final Map<String, int[]> sums = new HashMap<>();
+
+	private final LongAdder joins = new LongAdder();
+	private final LongAdder leaves = new LongAdder();
+	private final LongAdder snapshots = new LongAdder();
+
+	private PresenceSync() {
+	}
+
+	/**
+	 * Register players that are already online, e.g. when the plugin is reloaded
+	 */
+	public synchronized void load() {
+		for (final Player player : VelocityControl.getPlayers())
+			player.getCurrentServer().ifPresent(connection -> {
+				final Member member = new Member(player.getUsername(), connection.getServerInfo().getName());
+
+				if (this.players.putIfAbsent(player.getUniqueId(), member) == null)
+					this.count(member, player.getUniqueId(), 1);
+			});
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onConnect(ServerConnectedEvent event) {
+		final Player player = event.getPlayer();
+		final Member member = new Member(player.getUsername(), event.getServer().getServerInfo().getName());
+
+		synchronized (this) {
+			final Member previous = this.players.put(player.getUniqueId(), member);
+
+			if (previous != null)
+				this.count(previous, player.getUniqueId(), -1);
+			else
+				this.joins.increment();
+
+			this.count(member, player.getUniqueId(), 1);
+
+			// Queued with the lock held so that servers apply deltas in the order of the checksum
+			this.announce(player.getUniqueId(), previous, member);
+		}
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onDisconnect(DisconnectEvent event) {
+		final UUID uniqueId = event.getPlayer().getUniqueId();
+
+		synchronized (this) {
+			final Member previous = this.players.remove(uniqueId);
+
+			if (previous == null)
+				return;
+
+			this.count(previous, uniqueId, -1);
+			this.leaves.increment();
+
+			this.announce(uniqueId, previous, null);
+		}
+	}
+
+	/*
+	 * Add or remove the player from the sums of his server
+	 */
+	private void count(Member member, UUID uniqueId, int delta) {
+		final int[] sum = this.sums.computeIfAbsent(member.serverName, serverName -> new int[2]);
+
+		sum[0] += delta;
+		sum[1] ^= hash(member.playerName, uniqueId);
+	}
+
+	/*
+	 * Send joined to servers that see the player now but did not, and left to those that
+	 * no longer see him, which only differs between clusters when he switches servers
+	 */
+	private void announce(UUID uniqueId, Member previous, Member current) {
+		final int oldCluster = previous != null ? RoutingTable.getCluster(previous.serverName) : RoutingTable.ANY;
+		final int newCluster = current != null ? RoutingTable.getCluster(current.serverName) : RoutingTable.ANY;
+
+		if (previous != null && current != null && oldCluster == newCluster)
+			return;
+
+		final Payload joined = current != null ? newDelta(ProxyPacket.PLAYERS_JOINED, current.playerName, uniqueId) : null;
+		final Payload left = previous != null ? newDelta(ProxyPacket.PLAYERS_LEFT, previous.playerName, uniqueId) : null;
+
+		Relay.broadcastByCluster(cluster -> {
+			final boolean saw = previous != null && RoutingTable.canReachCluster(oldCluster, cluster);
+			final boolean sees = current != null && RoutingTable.canReachCluster(newCluster, cluster);
+
+			return saw == sees ? null : sees ? joined : left;
+
+		}, Protocol.FEATURE_PRESENCE, true);
+	}
+
+	private static Payload newDelta(ProxyPacket packet, String playerName, UUID uniqueId) {
+		final OutgoingMessage message = new OutgoingMessage(packet);
+
+		message.writeString(playerName, uniqueId.toString());
+		return message.compile();
+	}
+
+	/**
+	 * Send the count and checksum of the players each cluster sees to servers that read deltas,
+	 * called every sync tick
+	 */
+	public synchronized void tick() {
+		if (!Relay.hasServerWithFeature(Protocol.FEATURE_PRESENCE, true))
+			return;
+
+		Relay.broadcastByCluster(cluster -> {
+			int count = 0;
+			int checksum = 0;
+
+			for (final Map.Entry<String, int[]> entry : this.sums.entrySet())
+				if (RoutingTable.canReachCluster(RoutingTable.getCluster(entry.getKey()), cluster)) {
+					count += entry.getValue()[0];
+					checksum ^= entry.getValue()[1];
+				}
+
+			final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CHECKSUM);
+
+			message.writeInt(count);
+			message.writeInt(checksum);
+
+			return message.compile();
+
+		}, Protocol.FEATURE_PRESENCE, true);
+	}
+
+	/**
+	 * Send the players the given server sees to it, when it asked for them
+	 *
+	 * @param server
+	 */
+	public synchronized void sendSnapshot(RegisteredServer server) {
+		final int cluster = RoutingTable.getCluster(server.getServerInfo().getName());
+		final HashMap<String, UUID> onlinePlayers = new HashMap<>();
+
+		this.players.forEach((uniqueId, member) -> {
+			if (RoutingTable.canReachCluster(RoutingTable.getCluster(member.serverName), cluster))
+				onlinePlayers.put(member.playerName, uniqueId);
+		});
+
+		this.snapshots.increment();
+
+		final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CLUSTER_HEADER);
+
+		message.writeMap(onlinePlayers);
+		Relay.send(server, message.compile());
+	}
+
+	/**
+	 * Return the checksum share of one player, see {@link ProxyPacket#PLAYERS_CHECKSUM}
+	 *
+	 * @param playerName
+	 * @param uniqueId
+	 * @return
+	 */
+	public static int hash(String playerName, UUID uniqueId) {
+		return mix(playerName.hashCode() * 31 + uniqueId.hashCode());
+	}
+
+	/*
+	 * The Murmur3 finalizer, so that players with similar names spread over all bits
+	 */
+	static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+
+		return hash;
+	}
+
+	/*
+	 * A player and the server he is on
+	 */
+	private static final class Member {
+
+		private final String playerName;
+		private final String serverName;
+
+		private Member(String playerName, String serverName) {
+			this.playerName = playerName;
+			this.serverName = serverName;
+		}
+	}
+
+	/**
+	 * Return the human readable presence statistics since startup
+	 *
+	 * @return
+	 */
+	public synchronized String getStatistics() {
+		return "Presence: " + this.players.size() + " players, " + this.joins.sum() + " joins, " + this.leaves.sum() + " leaves, " + this.snapshots.sum() + " snapshots requested";
+	}
+}
@@ -0,0 +1,172 @@
+package org.mineacademy.velocitycontrol;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the data sync tick at an interval that adapts to how much changes on the network.
+ *
+ * The interval halves down to {@link Settings.Network#Sync_Interval_Min} after a tick that
+ * sent something and doubles up to {@link Settings.Network#Sync_Interval_Max} after an idle
+ * one. When players join or leave, or a server uploads changed data while the interval is
+ * long, the next tick is pulled in to the minimum so the change does not wait.
+ */
+public final class SyncScheduler {
+
+	/**
+	 * The singleton, registered as a listener on startup
+	 */
+	@Getter
+	private static final SyncScheduler instance = new SyncScheduler();
+
+	/**
+	 * The next tick, guarded by this
+	 */
+	private ScheduledTask task;
+
+	/**
+	 * The current interval, guarded by this
+	 */
+	private long interval;
+
+	/**
+	 * When the next tick runs, or Long.MIN_VALUE when stopped, read without the lock to keep wake ups cheap
+	 */
+	private volatile long nextTickAt = Long.MIN_VALUE;
+
+	/**
+	 * Gauges
+	 */
+	private volatile int lastBatch;
+	private final LongAdder ticks = new LongAdder();
+	private final LongAdder wakeUps = new LongAdder();
+	private final LongAdder batched = new LongAdder();
+
+	private SyncScheduler() {
+	}
+
+	/**
+	 * (Re)start ticking according to settings, call after they are loaded
+	 */
+	public synchronized void load() {
+		this.interval = this.getMaxInterval();
+
+		this.schedule(1000);
+	}
+
+	/**
+	 * Stop ticking
+	 */
+	public synchronized void stop() {
+		if (this.task != null) {
+			this.task.cancel();
+			this.task = null;
+		}
+
+		this.nextTickAt = Long.MIN_VALUE;
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onConnect(ServerConnectedEvent event) {
+		if (!event.getPreviousServer().isPresent())
+			this.wakeUp();
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onDisconnect(DisconnectEvent event) {
+		this.wakeUp();
+	}
+
+	/**
+	 * Run the next tick within the minimum interval, called when something changed
+	 */
+	public void wakeUp() {
+		final long minInterval = this.getMinInterval();
+
+		if (this.nextTickAt - System.currentTimeMillis() <= minInterval)
+			return;
+
+		synchronized (this) {
+			if (this.task != null && this.nextTickAt - System.currentTimeMillis() > minInterval) {
+				this.wakeUps.increment();
+
+				this.schedule(minInterval);
+			}
+		}
+	}
+
+	/*
+	 * Upload the player list and what changed, then adapt the interval to how much was sent
+	 */
+	private void tick() {
+		boolean playersChanged = false;
+		int batch = 0;
+
+		try {
+			// Upload the always reliable player list from Bungee (do not compile lists given by downstream
+			// due to poor performance in the past)
+			playersChanged = SyncedCache.updateForOnlinePlayers();
+			PresenceSync.getInstance().tick();
+
+			// Upload downstream data here and redistribute what changed over network
+			batch = ClusterSync.getInstance().tick();
+
+		} finally {
+			this.lastBatch = batch;
+			this.ticks.increment();
+			this.batched.add(batch);
+
+			synchronized (this) {
+				if (this.task != null) {
+					if (batch > 0 || playersChanged)
+						this.interval = Math.max(this.getMinInterval(), this.interval / 2);
+					else
+						this.interval = Math.min(this.getMaxInterval(), this.interval * 2);
+
+					this.schedule(this.interval);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Replace the next tick with one after the given delay, called with the lock held
+	 */
+	private void schedule(long delay) {
+		if (this.task != null)
+			this.task.cancel();
+
+		this.nextTickAt = System.currentTimeMillis() + delay;
+		this.task = VelocityControl.getServer().getScheduler().buildTask(VelocityControl.getInstance(), this::tick)
+				.delay(delay, TimeUnit.MILLISECONDS)
+				.schedule();
+	}
+
+	private long getMinInterval() {
+		return Math.max(1, Settings.getSettings().Network.Sync_Interval_Min);
+	}
+
+	private long getMaxInterval() {
+		return Math.max(this.getMinInterval(), Settings.getSettings().Network.Sync_Interval_Max);
+	}
+
+	/**
+	 * Return the human readable scheduler statistics since startup
+	 *
+	 * @return
+	 */
+	public synchronized String getStatistics() {
+		final long ticks = this.ticks.sum();
+
+		return "Sync: every " + this.interval + " ms, " + ticks + " ticks, " + this.wakeUps.sum() + " woken early, last batch " + this.lastBatch
+				+ " lines, " + (ticks == 0 ? 0 : this.batched.sum() / ticks) + " on average";
+	}
+}
@@ -1,5 +1,6 @@
 package org.mineacademy.velocitycontrol;
 
+import com.velocitypowered.api.proxy.Player;
 import lombok.Getter;
 import org.mineacademy.velocitycontrol.foundation.Common;
 import org.mineacademy.velocitycontrol.foundation.Debugger;
@@ -7,6 +8,9 @@ import org.mineacademy.velocitycontrol.listener.OutgoingMessage;
 import org.mineacademy.velocitycontrol.listener.VelocityControlListener;
 import org.mineacademy.velocitycontrol.model.ChannelMode;
 import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.mineacademy.velocitycontrol.network.Relay;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -215,37 +219,71 @@ public final class SyncedCache {
 
 	/**
 	 * Add/remove syncedcaches based on online network players
+	 *
+	 * @return true if players joined or left since the last call
 	 */
-	public static void updateForOnlinePlayers() {
+	public static boolean updateForOnlinePlayers() {
 		synchronized (cacheMap) {
 			final HashMap<String, UUID> onlinePlayers = new HashMap<>();
+			final Map<String, Integer> playerClusters = RoutingTable.isEnabled() ? new HashMap<>() : null;
+			boolean changed = false;
 
 			// Add non-cached players
-			VelocityControl.getServer().getAllPlayers().forEach(player -> {
+			for (final Player player : VelocityControl.getServer().getAllPlayers()) {
 				final String playerName = player.getUsername();
 				final UUID uniqueId = player.getUniqueId();
 
-				if (!cacheMap.containsKey(playerName))
+				if (!cacheMap.containsKey(playerName)) {
 					cacheMap.put(playerName, new SyncedCache(playerName, uniqueId));
 
+					changed = true;
+				}
+
 				onlinePlayers.put(playerName, uniqueId);
-			});
+
+				if (playerClusters != null)
+					playerClusters.put(playerName, player.getCurrentServer().map(connection -> RoutingTable.getCluster(connection.getServerInfo().getName())).orElse(RoutingTable.GLOBAL));
+			}
 
 			Iterator<Map.Entry<String, SyncedCache>> cacheMapIterator = cacheMap.entrySet().iterator();
 			while(cacheMapIterator.hasNext()) {
 				Map.Entry<String, SyncedCache> entry = cacheMapIterator.next();
 				if(!onlinePlayers.containsKey(entry.getKey())) {
 					cacheMapIterator.remove();
+
+					changed = true;
 				}
 			}
 
-			final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CLUSTER_HEADER);
-			message.writeMap(onlinePlayers);
+			// Servers reading presence deltas get the list only when they ask for it, see PresenceSync
+			if (Relay.hasServerWithFeature(Protocol.FEATURE_PRESENCE, false))
+				Relay.broadcastByCluster(cluster -> {
+					final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CLUSTER_HEADER);
+
+					// Each cluster only sees its own and global players
+					message.writeMap(playerClusters != null ? filterByCluster(onlinePlayers, playerClusters, cluster) : onlinePlayers);
+					return message.compile();
+
+				}, Protocol.FEATURE_PRESENCE, false);
 
-			VelocityControl.broadcastPacket(message);
+			return changed;
 		}
 	}
 
+	/*
+	 * Return the players of the given map that servers in the given cluster see
+	 */
+	private static Map<String, UUID> filterByCluster(Map<String, UUID> players, Map<String, Integer> playerClusters, int cluster) {
+		final HashMap<String, UUID> visible = new HashMap<>();
+
+		players.forEach((playerName, uniqueId) -> {
+			if (RoutingTable.canReachCluster(playerClusters.get(playerName), cluster))
+				visible.put(playerName, uniqueId);
+		});
+
+		return visible;
+	}
+
 	/**
 	 * Retrieve (or create) a sender cache
 	 * @param syncType
@@ -273,13 +311,15 @@ public final class SyncedCache {
 	 * @param line
 	 */
 	public static void uploadSingle(String playerName, UUID uniqueId, String line) {
-		SyncedCache cache = cacheMap.get(playerName);
+		synchronized (cacheMap) {
+			SyncedCache cache = cacheMap.get(playerName);
 
-		if (cache == null)
-			cache = new SyncedCache(playerName, uniqueId);
+			if (cache == null)
+				cache = new SyncedCache(playerName, uniqueId);
 
-		cache.loadData(line);
-		cacheMap.put(playerName, cache);
+			cache.loadData(line);
+			cacheMap.put(playerName, cache);
+		}
 	}
 
 	/* ------------------------------------------------------------------------------- */
@@ -14,7 +14,17 @@ import com.velocitypowered.api.proxy.server.RegisteredServer;
 import lombok.Getter;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 import org.mineacademy.velocitycontrol.command.ReloadCommand;
+import org.mineacademy.velocitycontrol.command.StatsCommand;
 import org.mineacademy.velocitycontrol.listener.*;
+import org.mineacademy.velocitycontrol.network.Batcher;
+import org.mineacademy.velocitycontrol.network.InboundExecutor;
+import org.mineacademy.velocitycontrol.network.OutboundQueue;
+import org.mineacademy.velocitycontrol.network.PermissionIndex;
+import org.mineacademy.velocitycontrol.network.RateLimiter;
+import org.mineacademy.velocitycontrol.network.Relay;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
+import org.mineacademy.velocitycontrol.network.ServerRegistry;
+import org.mineacademy.velocitycontrol.network.StoreAndForward;
 import org.mineacademy.velocitycontrol.operator.PlayerMessages;
 import org.mineacademy.velocitycontrol.settings.Settings;
 import org.slf4j.Logger;
@@ -77,6 +87,8 @@ public final class VelocityControl {
 		long time = System.currentTimeMillis();
 		ServerCache.getInstance();
 		Settings.load();
+		RoutingTable.load();
+		RateLimiter.load();
 
 		velocityControl = new VelocityControlListener();
 		server.getChannelRegistrar().register(CHANNEL);
@@ -85,11 +97,21 @@ public final class VelocityControl {
 		server.getEventManager().register(this, new CommandListener());
 		server.getEventManager().register(this, new PlayerListener());
 		server.getEventManager().register(this, velocityControl);
+		server.getEventManager().register(this, ServerRegistry.getInstance());
+		server.getEventManager().register(this, PermissionIndex.getInstance());
+		server.getEventManager().register(this, StoreAndForward.getInstance());
+		server.getEventManager().register(this, SyncScheduler.getInstance());
+		server.getEventManager().register(this, PresenceSync.getInstance());
+		ServerRegistry.getInstance().load();
+		PresenceSync.getInstance().load();
 		this.onReloadablesStart();
 
 		CommandMeta commandMeta = server.getCommandManager().metaBuilder("vcreload").build();
 		server.getCommandManager().register(commandMeta, new ReloadCommand());
 
+		CommandMeta statsMeta = server.getCommandManager().metaBuilder("vcstats").build();
+		server.getCommandManager().register(statsMeta, new StatsCommand());
+
 		time = System.currentTimeMillis() - time;
 		getServer().getConsoleCommandSource().sendMessage(
 				LegacyComponentSerializer.legacyAmpersand().deserialize("&a[VelocityControl] Loaded in " + time + "ms!")
@@ -98,10 +120,15 @@ public final class VelocityControl {
 
 	protected void onReloadablesStart() {
 		PlayerMessages.getInstance().load();
-		velocityControl.scheduleSyncTask();
+		PermissionIndex.getInstance().load();
+		SyncScheduler.getInstance().load();
 	}
 
 	public void onPluginStop() {
+		SyncScheduler.getInstance().stop();
+		InboundExecutor.shutdown(1000);
+		OutboundQueue.shutdown(1000);
+		Batcher.flushAll();
 		server.getChannelRegistrar().unregister(CHANNEL);
 		ServerCache.getInstance().saveFile();
 	}
@@ -129,32 +156,12 @@ public final class VelocityControl {
 	}
 
 
-	/**
-	 * Forwards the given message as the given sender to non-empty server.
-	 *
-	 * @param message
-	 */
-	public static void forwardMessage(OutgoingMessage message) {
-		final byte[] data = message.compileData();
-
-		for (final RegisteredServer registeredServer: getServers()) {
-
-			if (!registeredServer.getPlayersConnected().isEmpty())
-				registeredServer.sendPluginMessage(VelocityControl.CHANNEL, data);
-		}
-	}
-
 	/**
 	 * Broadcast the given message to all non empty servery
 	 *
 	 * @param message
 	 */
 	public static void broadcastPacket(OutgoingMessage message) {
-		for (final RegisteredServer server : getServers()) {
-
-			// Avoiding sending to empty server since messages will then "stack up"
-			if (!server.getPlayersConnected().isEmpty())
-				message.send(server);
-		}
+		Relay.broadcast(message.compile(), Relay.NO_EXCLUSION);
 	}
 }
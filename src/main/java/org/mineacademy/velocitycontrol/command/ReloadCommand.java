@@ -2,6 +2,10 @@ package org.mineacademy.velocitycontrol.command;
 
 import com.velocitypowered.api.command.SimpleCommand;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.mineacademy.velocitycontrol.SyncScheduler;
+import org.mineacademy.velocitycontrol.network.PermissionIndex;
+import org.mineacademy.velocitycontrol.network.RateLimiter;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
 import org.mineacademy.velocitycontrol.operator.PlayerMessages;
 import org.mineacademy.velocitycontrol.settings.Settings;
 
@@ -9,7 +13,11 @@ public class ReloadCommand implements SimpleCommand {
     @Override
     public void execute(Invocation invocation) {
         Settings.load();
+        RoutingTable.load();
+        RateLimiter.load();
         PlayerMessages.getInstance().load();
+        PermissionIndex.getInstance().load();
+        SyncScheduler.getInstance().load();
         invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&a[VelocityControl] Reloaded"));
     }
 
@@ -0,0 +1,27 @@
+package org.mineacademy.velocitycontrol.command;
+
+import com.velocitypowered.api.command.SimpleCommand;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.mineacademy.velocitycontrol.ClusterSync;
+import org.mineacademy.velocitycontrol.PresenceSync;
+import org.mineacademy.velocitycontrol.SyncScheduler;
+import org.mineacademy.velocitycontrol.network.Relay;
+
+public class StatsCommand implements SimpleCommand {
+    @Override
+    public void execute(Invocation invocation) {
+        invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&a[VelocityControl] Network statistics:"));
+
+        for (final String line : Relay.getStatistics())
+            invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7" + line));
+
+        invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7" + ClusterSync.getInstance().getStatistics()));
+        invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7" + SyncScheduler.getInstance().getStatistics()));
+        invocation.source().sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7" + PresenceSync.getInstance().getStatistics()));
+    }
+
+    @Override
+    public boolean hasPermission(Invocation invocation) {
+        return invocation.source().hasPermission("chatcontrol.command.stats");
+    }
+}
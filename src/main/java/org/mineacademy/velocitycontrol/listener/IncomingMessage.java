@@ -1,45 +1,311 @@
 package org.mineacademy.velocitycontrol.listener;
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteStreams;
-import com.google.gson.Gson;
+import com.google.common.base.Preconditions;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.MapCodec;
+import org.mineacademy.velocitycontrol.network.PacketCodec;
+import org.mineacademy.velocitycontrol.network.PacketReader;
+import org.mineacademy.velocitycontrol.network.Protocol;
 
-import java.io.ByteArrayInputStream;
-import java.util.HashMap;
 import java.util.UUID;
+import java.util.function.BiConsumer;
 
+/**
+ * A reusable flyweight reader over the raw packet bytes.
+ *
+ * The header is only scanned for the offsets of its fields when wrapped,
+ * the strings themselves are decoded the first time a handler asks for them.
+ * Packets the proxy consumes are validated against the {@link PacketCodec} of the action
+ * with {@link #validate()} before any handler runs, packets it only relays are checked
+ * for the fields read from them with {@link #validate(int)}.
+ * Instances are per-thread, do not keep a reference after handling the packet.
+ *
+ * Both header versions in {@link Protocol} are supported.
+ */
 public final class IncomingMessage extends Message {
-    private final byte[] data;
-    private final ByteArrayDataInput input;
 
-    private final ByteArrayInputStream stream;
+    /**
+     * The reader reused by every packet handled on the current thread
+     */
+    private static final ThreadLocal<IncomingMessage> READER = ThreadLocal.withInitial(IncomingMessage::new);
 
+    private byte[] data;
+
+    /**
+     * The header version of the packet
+     */
+    private int version;
+
+    /**
+     * Offsets of the header fields, for the legacy header these point
+     * to the length prefixes of the strings
+     */
+    private int channelOffset;
+    private int senderOffset;
+    private int serverOffset;
+    private int actionOffset;
+
+    /**
+     * The offset of the first body field
+     */
+    private int bodyOffset;
+
+    /**
+     * The offset of the next body field to read
+     */
+    private int position;
+
+    /**
+     * If maps in the body are in the binary form
+     */
+    private boolean binaryMaps;
+
+    /**
+     * Lazily decoded header fields
+     */
+    private String channelName;
+    private UUID senderUid;
+    private String serverName;
+    private ProxyPacket action;
+
+    private IncomingMessage() {
+    }
+
+    /**
+     * Create a new standalone reader for the given data, prefer {@link #wrap(byte[])}
+     * on hot paths
+     *
+     * @param data
+     */
     public IncomingMessage(byte[] data) {
-        this.data = data;
-        this.stream = new ByteArrayInputStream(data);
-        this.input = ByteStreams.newDataInput(this.stream);
+        this.reset(data);
+    }
+
+    /**
+     * Point the reader of the current thread to the given packet
+     *
+     * @param data
+     * @return
+     */
+    public static IncomingMessage wrap(byte[] data) {
+        final IncomingMessage message = READER.get();
+
+        message.reset(data);
+        return message;
+    }
+
+    /**
+     * Read only the action of the given packet, skipping over the other header fields
+     * without decoding them. Used to route packets the proxy does not consume.
+     *
+     * @param data
+     * @return the action, or null if the packet is malformed or the action unknown
+     */
+    public static ProxyPacket peekAction(byte[] data) {
+        if (Protocol.getVersion(data) != Protocol.LEGACY)
+            try {
+                return ProxyPacket.getById(PacketReader.readVarInt(data, 1));
+
+            } catch (final IllegalArgumentException ex) {
+                return null;
+            }
+
+        int offset = 0;
+
+        // Skip channel name, sender UUID and server name
+        for (int field = 0; field < 3; field++) {
+            if (offset + 2 > data.length)
+                return null;
+
+            offset += 2 + (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+        }
+
+        if (offset + 2 > data.length)
+            return null;
+
+        final int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+
+        return offset + 2 + length <= data.length ? ProxyPacket.getByName(data, offset + 2, length) : null;
+    }
+
+    /*
+     * Scan the header offsets and forget everything decoded from the previous packet
+     */
+    private void reset(byte[] data) {
+        this.data = Protocol.decompress(data);
+        this.channelName = null;
+        this.senderUid = null;
+        this.serverName = null;
+        this.action = null;
+        this.resetHead();
+        this.version = Protocol.getVersion(this.data);
+
+        if (this.version == Protocol.LEGACY) {
+            this.channelOffset = 0;
+            this.senderOffset = PacketReader.skipUTF(this.data, this.channelOffset);
+            this.serverOffset = PacketReader.skipUTF(this.data, this.senderOffset);
+            this.actionOffset = PacketReader.skipUTF(this.data, this.serverOffset);
+            this.bodyOffset = PacketReader.skipUTF(this.data, this.actionOffset);
+
+        } else {
+            this.actionOffset = 1;
+            this.senderOffset = PacketReader.skipVarInt(this.data, this.actionOffset);
+            this.serverOffset = this.senderOffset + 16;
+            this.bodyOffset = PacketReader.skipVarInt(this.data, this.serverOffset);
+        }
+
+        this.position = this.bodyOffset;
+        this.binaryMaps = Protocol.hasBinaryMaps(this.data);
+    }
+
+    /**
+     * Check that the whole body matches the codec of the action
+     *
+     * @return this message
+     * @throws IllegalArgumentException if the body does not match
+     */
+    public IncomingMessage validate() {
+        return this.validate(PacketCodec.of(this.getAction()).getFieldCount());
+    }
+
+    /**
+     * Check that the given amount of leading body fields match the codec of the action,
+     * for packets that are relayed after reading only these fields
+     *
+     * @param fieldCount
+     * @return this message
+     * @throws IllegalArgumentException if the fields do not match
+     */
+    public IncomingMessage validate(int fieldCount) {
+        PacketCodec.of(this.getAction()).scan(this.data, this.bodyOffset, this.binaryMaps, fieldCount);
+
+        return this;
+    }
+
+    /**
+     * Return the header version of this packet
+     *
+     * @return
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Return the offset of the first body field, right after the header
+     *
+     * @return
+     */
+    public int getBodyOffset() {
+        return this.bodyOffset;
+    }
+
+    @Override
+    public String getChannelName() {
+        if (this.channelName == null)
+            this.channelName = this.version == Protocol.LEGACY ? PacketReader.readUTF(this.data, this.channelOffset) : "Null";
+
+        return this.channelName;
+    }
 
-        setChannelName(this.input.readUTF()); //Unused channel name
-        setSenderUid(this.input.readUTF());
-        setServerName(this.input.readUTF());
-        setAction(this.input.readUTF());
+    @Override
+    public UUID getSenderUid() {
+        if (this.senderUid == null) {
+            if (this.version != Protocol.LEGACY) {
+                this.senderUid = new UUID(PacketReader.readLong(this.data, this.senderOffset), PacketReader.readLong(this.data, this.senderOffset + 8));
+
+                return this.senderUid;
+            }
+
+            final String raw = PacketReader.readUTF(this.data, this.senderOffset);
+
+            try {
+                this.senderUid = UUID.fromString(raw);
+            } catch (final IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Expected UUID, got " + raw + " for packet " + this.getAction() + " from server " + this.getServerName());
+            }
+        }
+
+        return this.senderUid;
+    }
+
+    @Override
+    public String getServerName() {
+        if (this.serverName == null)
+            this.serverName = this.version == Protocol.LEGACY ? PacketReader.readUTF(this.data, this.serverOffset) : Protocol.getServerName(PacketReader.readVarInt(this.data, this.serverOffset));
+
+        return this.serverName;
+    }
+
+    @Override
+    public ProxyPacket getAction() {
+        if (this.action == null && this.version != Protocol.LEGACY) {
+            final int id = PacketReader.readVarInt(this.data, this.actionOffset);
+
+            this.action = ProxyPacket.getById(id);
+            Preconditions.checkNotNull(this.action, "Unknown action id: " + id + ".");
+
+        } else if (this.action == null) {
+            final String actionName = PacketReader.readUTF(this.data, this.actionOffset);
+
+            this.action = ProxyPacket.getByName(actionName);
+            Preconditions.checkNotNull(this.action, "Unknown action named: " + actionName + ".");
+        }
+
+        return this.action;
     }
 
     public UUID readUUID() {
-        this.moveHead();
-        return UUID.fromString(this.input.readUTF());
+        this.moveHead(PacketCodec.FieldType.UUID);
+
+        return UUID.fromString(this.readUTF());
     }
 
-    public HashMap readMap() {
-        Gson gson = new Gson();
-        return gson.fromJson(this.readString(), HashMap.class);
+    /**
+     * Stream the entries of the next map into the consumer, reading either
+     * the json or the binary form depending on the packet flags
+     *
+     * @param consumer
+     */
+    public void readStringMap(BiConsumer<String, String> consumer) {
+        this.moveHead(PacketCodec.FieldType.MAP);
+
+        if (this.binaryMaps)
+            this.position = MapCodec.readStrings(this.data, this.position, consumer);
+        else
+            this.position = MapCodec.readJsonStrings(this.data, this.position, consumer);
     }
 
     public String readString() {
-        this.moveHead();
-        return this.input.readUTF();
+        this.moveHead(PacketCodec.FieldType.STRING);
+
+        return this.readUTF();
+    }
+
+    public int readInt() {
+        this.moveHead(PacketCodec.FieldType.INTEGER);
+
+        final int value = PacketReader.readInt(this.data, this.position);
+        this.position += 4;
+
+        return value;
+    }
+
+    /*
+     * Read the string at the current position and move past it
+     */
+    private String readUTF() {
+        final String value = PacketReader.readUTF(this.data, this.position);
+        this.position = PacketReader.skipUTF(this.data, this.position);
+
+        return value;
     }
 
+    /**
+     * Return the raw packet, with its body inflated if it was compressed
+     *
+     * @return
+     */
     public byte[] getData() {
         return this.data;
     }
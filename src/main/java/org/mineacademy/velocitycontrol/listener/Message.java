@@ -8,13 +8,13 @@ import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import org.mineacademy.velocitycontrol.VelocityControl;
 import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.PacketCodec;
 
 import java.util.UUID;
 
 /**
  * Represents a in/out message with a given action and server name
- * and a safety check for writing/reading the data
- * based on the action's content.
+ * reading/writing the data in the order of the action's {@link PacketCodec}.
  */
 @RequiredArgsConstructor(access = AccessLevel.PROTECTED)
 abstract class Message {
@@ -98,22 +98,37 @@ abstract class Message {
 	}
 
 	/**
-	 * Ensures we are reading in the correct order as the given {@link ProxyPacket}
-	 * specifies in its {@link ProxyPacket#getContent()} getter.
+	 * Advance to the next field as the given {@link ProxyPacket} specifies
+	 * in its {@link ProxyPacket#getContent()} getter.
 	 *
-	 * This also ensures we are reading the correct data type (both primitives and wrappers
-	 * are supported).
+	 * Incoming bodies are validated as a whole by {@link PacketCodec#scan(byte[], int, boolean)},
+	 * so the field type is only asserted here. Outgoing messages check it on every write.
 	 *
-     */
-	protected final void moveHead() {
-		Preconditions.checkNotNull(serverName, "Server name not set!");
-		Preconditions.checkNotNull(serverName, "Server name not set!");
-		Preconditions.checkNotNull(action, "Action not set!");
+	 * @param type the type of the field about to be read or written
+	 * @return the index of the field
+	 */
+	protected final int moveHead(PacketCodec.FieldType type) {
+		final int head = this.actionHead++;
+
+		assert PacketCodec.of(this.getAction()).matches(head, type) : "Field #" + (head + 1) + " of " + this.getAction() + " is not " + type;
+		return head;
+	}
 
-		final Class<?>[] content = action.getContent();
-		Preconditions.checkArgument(actionHead < content.length, "Head out of bounds! Max data size for " + action.name() + " is " + content.length);
+	/**
+	 * Return how many fields were read or written
+	 *
+	 * @return
+	 */
+	protected final int getHead() {
+		return this.actionHead;
+	}
 
-		actionHead++;
+	/**
+	 * Rewind the reading/writing position back to the first data field,
+	 * used when a message instance is reused for another packet
+	 */
+	protected final void resetHead() {
+		this.actionHead = 0;
 	}
 
 	/**
@@ -1,26 +1,95 @@
 package org.mineacademy.velocitycontrol.listener;
 
 import com.google.common.base.Preconditions;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
-import com.google.gson.Gson;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import org.mineacademy.velocitycontrol.VelocityControl;
 import org.mineacademy.velocitycontrol.foundation.Debugger;
-import org.mineacademy.velocitycontrol.foundation.exception.VCException;
 import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.MapCodec;
+import org.mineacademy.velocitycontrol.network.PacketCodec;
+import org.mineacademy.velocitycontrol.network.PacketWriter;
+import org.mineacademy.velocitycontrol.network.Payload;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.mineacademy.velocitycontrol.network.Relay;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
+/**
+ * Builds a packet by writing its fields straight into a buffer borrowed from
+ * the {@link PacketWriter} pool. Once compiled, the body is frozen into an
+ * immutable array, the buffer goes back to the pool and no more fields can be written.
+ *
+ * Packets with maps keep a second body with the maps in the binary form of {@link MapCodec},
+ * started on the first map, for servers that negotiated {@link Protocol#FEATURE_BINARY_MAPS}.
+ *
+ * Servers without binary maps cannot take a json map over the 64 KB string limit, and backends
+ * refuse plugin messages over 32 KB. So a map receivers merge, see {@link ProxyPacket#hasMergedMap()},
+ * is split over several bodies for them once its json exceeds {@link #MAX_JSON_PART_SIZE}.
+ */
 public final class OutgoingMessage extends Message {
-	private final List<Object> queue;
+
+	/**
+	 * The longest json map sent in one packet when it can be split, in bytes,
+	 * leaving room for the header and the other fields below the backend limit
+	 */
+	private static final int MAX_JSON_PART_SIZE = 30_000;
+
+	/**
+	 * The expected body size of each packet by its id, starting from an estimate
+	 * of its content and following the size of the last compiled packet
+	 */
+	private static final int[] sizeHints = new int[ProxyPacket.values().length];
+
+	static {
+		for (final ProxyPacket packet : ProxyPacket.values())
+			sizeHints[packet.getId()] = PacketCodec.of(packet).getSizeEstimate();
+	}
+
+	/**
+	 * The body being written, null once frozen
+	 */
+	private PacketWriter writer;
+
+	/**
+	 * The body with binary maps being written, null until the first map or once frozen
+	 */
+	private PacketWriter binaryWriter;
+
+	/**
+	 * The immutable body, set once frozen
+	 */
+	private byte[] body;
+
+	/**
+	 * The immutable body with binary maps, the same as the body if there are no maps
+	 */
+	private byte[] binaryBody;
+
+	/**
+	 * Why the body with json maps could not be written, typically a map over
+	 * the 64 KB string limit, or null if it is fine
+	 */
+	private String jsonError;
+
+	/**
+	 * The bodies with json maps each carrying part of a merged map too large for one packet,
+	 * or null if the body carries it whole
+	 */
+	private List<byte[]> jsonParts;
+
+	/**
+	 * The shareable payload, set once compiled
+	 */
+	private Payload payload;
 
 	public OutgoingMessage(ProxyPacket action) {
 		this(UUID.fromString("00000000-0000-0000-0000-000000000000"), "", action);
 	}
 
 	public OutgoingMessage(UUID fromSenderUid, String fromServerName, ProxyPacket action) {
-		this.queue = new ArrayList<>();
 		setSenderUid(fromSenderUid.toString());
 		setServerName(fromServerName);
 		setAction(action);
@@ -29,73 +98,216 @@ public final class OutgoingMessage extends Message {
 			this.setChannelName("Null");
 		}
 
-		this.queue.add(getChannelName()); //Unused channel name
-		this.queue.add(fromSenderUid);
-		this.queue.add(getServerName());
-		this.queue.add(getAction().name());
-
+		this.writer = PacketWriter.borrow(sizeHints[action.getId()]);
 	}
 
 	public void writeString(String... messages) {
-		String[] var2 = messages;
-		int var3 = messages.length;
+		for (final String message : messages) {
+			Preconditions.checkNotNull(message, "Added object must not be null!");
 
-		for(int var4 = 0; var4 < var3; ++var4) {
-			String message = var2[var4];
-			this.write(message);
+			this.moveWriteHead(PacketCodec.FieldType.STRING).writeUTF(message);
+
+			if (this.binaryWriter != null)
+				this.binaryWriter.writeUTF(message);
 		}
+	}
+
+	public void writeInt(int value) {
+		this.moveWriteHead(PacketCodec.FieldType.INTEGER).writeInt(value);
+
+		if (this.binaryWriter != null)
+			this.binaryWriter.writeInt(value);
+	}
+
+	/**
+	 * Write a name to unique id map
+	 *
+	 * @param map
+	 */
+	public void writeMap(Map<String, UUID> map) {
+		final PacketWriter out = this.moveWriteHead(PacketCodec.FieldType.MAP);
 
+		MapCodec.writeUUIDs(this.getBinaryWriter(), map);
+		this.writeJson(out, map);
 	}
 
-	public void writeMap(HashMap<String, UUID> map) {
-		Gson gson = new Gson();
-		write(gson.toJson(map));
+	/**
+	 * Write a name to string map
+	 *
+	 * @param map
+	 */
+	public void writeStringMap(Map<String, String> map) {
+		final PacketWriter out = this.moveWriteHead(PacketCodec.FieldType.MAP);
+
+		MapCodec.writeStrings(this.getBinaryWriter(), map);
+		this.writeJson(out, map);
 	}
 
-	private void write(Object object) {
-		Preconditions.checkNotNull(object, "Added object must not be null!");
-		this.moveHead();
-		this.queue.add(object);
+	/*
+	 * Write the json form of the map, remembering the error instead of failing
+	 * since servers with binary maps can still receive this message
+	 */
+	private void writeJson(PacketWriter out, Map<String, ?> map) {
+		if (this.jsonError != null)
+			return;
+
+		try {
+			final List<String> parts = this.getAction().hasMergedMap() && this.getHead() == PacketCodec.of(this.getAction()).getFieldCount()
+					? MapCodec.toJsonParts(map, MAX_JSON_PART_SIZE)
+					: Collections.singletonList(MapCodec.toJson(map));
+
+			if (parts.size() > 1) {
+				final byte[] fields = out.toByteArray();
+
+				this.jsonParts = new ArrayList<>(parts.size());
+
+				for (final String part : parts) {
+					final PacketWriter partWriter = PacketWriter.borrow(fields.length + part.length() + 2);
+
+					try {
+						partWriter.write(fields);
+						partWriter.writeUTF(part);
+
+						this.jsonParts.add(partWriter.toByteArray());
+
+					} finally {
+						partWriter.release();
+					}
+				}
+
+				// The body itself is never sent as json, keep it valid but empty
+				out.writeUTF("{}");
+
+			} else
+				out.writeUTF(parts.get(0));
+
+		} catch (final IllegalArgumentException ex) {
+			this.jsonError = ex.getMessage();
+		}
+	}
+
+	/*
+	 * Advance the head and return the writer of the body, failing right at the write
+	 * of a field out of order or of the wrong type
+	 */
+	private PacketWriter moveWriteHead(PacketCodec.FieldType type) {
+		Preconditions.checkState(this.writer != null, "Cannot write to %s after it was compiled", this.getAction());
+
+		final int head = this.moveHead(type);
+		Preconditions.checkArgument(PacketCodec.of(this.getAction()).matches(head, type), "Field #%s of %s is not %s", head + 1, this.getAction(), type);
+
+		return this.writer;
+	}
+
+	/*
+	 * Return the writer of the body with binary maps, starting it from the fields written so far
+	 */
+	private PacketWriter getBinaryWriter() {
+		if (this.binaryWriter == null) {
+			this.binaryWriter = PacketWriter.borrow(sizeHints[this.getAction().getId()]);
+			this.binaryWriter.write(this.writer.toByteArray());
+		}
+
+		return this.binaryWriter;
 	}
 
 	public void send(RegisteredServer server) {
-		server.sendPluginMessage(this.getChannel(), this.compileData());
+		Relay.send(server, this.compile());
 		Debugger.debug("bungee", "Sending data on " + this.getChannel() + " channel from " + this.getAction() + " to " + server.getServerInfo() + " server.");
 	}
 
+	/**
+	 * Freeze this message into a payload encoded at most once per header version,
+	 * shared by all servers it is sent to
+	 *
+	 * @return
+	 */
+	public Payload compile() {
+		if (this.payload == null)
+			this.payload = Payload.of(this);
+
+		return this.payload;
+	}
+
+	/**
+	 * Freeze the body and return it with maps as json, it must not be modified
+	 *
+	 * @return
+	 */
+	public byte[] getBody() {
+		return this.getBody(false);
+	}
+
+	/**
+	 * Freeze the body and return it with maps as json or in the binary form, it must not be modified
+	 *
+	 * @param binaryMaps
+	 * @return
+	 */
+	public byte[] getBody(boolean binaryMaps) {
+		if (this.body == null) {
+			final int fields = PacketCodec.of(this.getAction()).getFieldCount();
+			Preconditions.checkState(this.getHead() == fields, this.getAction() + " has " + fields + " fields, but " + this.getHead() + " were written");
+
+			this.body = this.writer.toByteArray();
+			sizeHints[this.getAction().getId()] = this.body.length;
+
+			this.writer.release();
+			this.writer = null;
+
+			if (this.binaryWriter != null) {
+				this.binaryBody = this.binaryWriter.toByteArray();
+
+				this.binaryWriter.release();
+				this.binaryWriter = null;
+
+			} else
+				this.binaryBody = this.body;
+		}
+
+		Preconditions.checkArgument(binaryMaps || this.jsonError == null, this.getAction() + " can only be sent to servers with binary maps: " + this.jsonError);
+		Preconditions.checkArgument(binaryMaps || this.jsonParts == null, this.getAction() + " is split over several packets for servers without binary maps, see compileParts");
+
+		return binaryMaps ? this.binaryBody : this.body;
+	}
+
 	public byte[] compileData() {
-		ByteArrayDataOutput out = ByteStreams.newDataOutput();
-		Iterator var2 = this.queue.iterator();
-
-		while(var2.hasNext()) {
-			Object object = var2.next();
-			if (object instanceof String) {
-				out.writeUTF((String)object);
-			} else if (object instanceof Boolean) {
-				out.writeBoolean((Boolean)object);
-			} else if (object instanceof Byte) {
-				out.writeByte((Byte)object);
-			} else if (object instanceof Double) {
-				out.writeDouble((Double)object);
-			} else if (object instanceof Float) {
-				out.writeFloat((Float)object);
-			} else if (object instanceof Integer) {
-				out.writeInt((Integer)object);
-			} else if (object instanceof Long) {
-				out.writeLong((Long)object);
-			} else if (object instanceof Short) {
-				out.writeShort((Short)object);
-			} else if (object instanceof UUID) {
-				out.writeUTF(object.toString());
-			} else {
-				if (!(object instanceof byte[])) {
-					throw new VCException("Unsupported write of " + object.getClass().getSimpleName() + " to channel " + this.getChannel() + " with action " + this.getAction().toString());
-				}
+		return this.compileData(Protocol.LEGACY);
+	}
+
+	/**
+	 * Encode this message in the given encoding, see {@link Protocol#getEncoding(String)}
+	 *
+	 * @param encoding
+	 * @return
+	 */
+	public byte[] compileData(int encoding) {
+		final byte[] body = this.getBody((encoding & Protocol.BINARY_MAPS) != 0);
+
+		return Protocol.encode(encoding, this.getChannelName(), this.getSenderUid(), this.getServerName(), this.getAction(), body, 0, body.length);
+	}
+
+	/**
+	 * Encode this message in the given encoding as one packet, or as several each carrying
+	 * part of its merged map if that is too large for one packet in this encoding
+	 *
+	 * @param encoding
+	 * @return
+	 */
+	public byte[][] compileParts(int encoding) {
+		this.getBody(true);
+
+		if (this.jsonParts == null || (encoding & Protocol.BINARY_MAPS) != 0)
+			return new byte[][] { this.compileData(encoding) };
+
+		final byte[][] parts = new byte[this.jsonParts.size()][];
+
+		for (int index = 0; index < parts.length; index++) {
+			final byte[] body = this.jsonParts.get(index);
 
-				out.write((byte[])object);
-			}
+			parts[index] = Protocol.encode(encoding, this.getChannelName(), this.getSenderUid(), this.getServerName(), this.getAction(), body, 0, body.length);
 		}
 
-		return out.toByteArray();
+		return parts;
 	}
 }
@@ -24,6 +24,6 @@ public final class PlayerListener {
         message.writeString(server.getServerInfo().getName());
         message.writeString(Settings.getServerNameAlias(server));
 
-        VelocityControl.forwardMessage(message);
+        VelocityControl.broadcastPacket(message);
     }
 }
@@ -19,6 +19,7 @@ import org.mineacademy.velocitycontrol.settings.Settings;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles join, quit and server switch messages.
@@ -35,7 +36,7 @@ public final class SwitchListener {
 	 *
 	 * It overrides previous values, only last message will get shown
 	 */
-	private static final Map<UUID, HashMap<PlayerMessage.Type, HashMap<String, String>>> pendingMessages = new HashMap<>();
+	private static final Map<UUID, HashMap<PlayerMessage.Type, HashMap<String, String>>> pendingMessages = new ConcurrentHashMap<>();
 
 	/**
 	 * Because join and switch events are called in the same event (ServerSwitchEvent), we
@@ -1,21 +1,35 @@
 package org.mineacademy.velocitycontrol.listener;
 
-import com.google.gson.Gson;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ServerConnection;
-import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.mineacademy.velocitycontrol.ClusterSync;
+import org.mineacademy.velocitycontrol.PresenceSync;
 import org.mineacademy.velocitycontrol.SyncedCache;
 import org.mineacademy.velocitycontrol.VelocityControl;
 import org.mineacademy.velocitycontrol.foundation.Debugger;
 import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.network.Batcher;
+import org.mineacademy.velocitycontrol.network.Fragments;
+import org.mineacademy.velocitycontrol.network.InboundExecutor;
+import org.mineacademy.velocitycontrol.network.LinkStats;
+import org.mineacademy.velocitycontrol.network.OverflowPolicy;
+import org.mineacademy.velocitycontrol.network.PacketReader;
+import org.mineacademy.velocitycontrol.network.PacketCodec;
+import org.mineacademy.velocitycontrol.network.Payload;
+import org.mineacademy.velocitycontrol.network.PermissionIndex;
+import org.mineacademy.velocitycontrol.network.RateLimiter;
+import org.mineacademy.velocitycontrol.network.Protocol;
+import org.mineacademy.velocitycontrol.network.Relay;
+import org.mineacademy.velocitycontrol.network.RoutingTable;
 import org.mineacademy.velocitycontrol.settings.Settings;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -23,29 +37,16 @@ import java.util.concurrent.TimeUnit;
  * packets from Spigot servers
  */
 public final class VelocityControlListener {
-    public VelocityControlListener() {
-        scheduleSyncTask();
-    }
-
     /**
-     * The present connection, always updated when new packet is received
+     * Packets the proxy reads itself, all others are relayed without being decoded
      */
-    private ServerConnection connection;
-
-    /**
-     * The present senders UUID
-     */
-    private UUID senderUid;
-
-    /**
-     * The present server name
-     */
-    private String serverName;
-
-    /**
-     * The data that are being synced between servers
-     */
-    private HashMap<SyncType, HashMap> clusteredData = new HashMap<>();
+    private static final Set<ProxyPacket> CONSUMED_PACKETS = Collections.unmodifiableSet(EnumSet.of(
+            ProxyPacket.PLAYERS_CLUSTER_DATA,
+            ProxyPacket.FORWARD_COMMAND,
+            ProxyPacket.CONFIRM_PLAYER_READY,
+            ProxyPacket.PROTOCOL_HELLO,
+            ProxyPacket.PLAYERS_SNAPSHOT_REQUEST,
+            ProxyPacket.DATA_TREE_REQUEST));
 
     /**
      * Used by packets but appear unused! Do not remove as I found out.
@@ -63,47 +64,64 @@ public final class VelocityControlListener {
         PACK_LOADED
     }
 
-    /**
-     * Reschedule data sync task
-     */
-    public void scheduleSyncTask() {
+    @Subscribe
+    public void onMessageReceived(PluginMessageEvent event) {
+        if (event.getIdentifier() != VelocityControl.CHANNEL) return;
 
-        VelocityControl.getServer().getScheduler().buildTask(VelocityControl.getInstance(), () -> {
-            // Upload the always reliable player list from Bungee (do not compile lists given by downstream
-            // due to poor performance in the past)
-            SyncedCache.updateForOnlinePlayers();
+        final ServerConnection connection = (ServerConnection) event.getSource();
+        final byte[] data = event.getData();
+        final long receivedAt = System.currentTimeMillis();
 
-            // Upload downstream data here and redistribute over network
-            synchronized (this.clusteredData) {
+        // Handle off the event thread, packets from one server stay in order
+        InboundExecutor.execute(connection.getServerInfo().getName(), getOverflowPolicy(data), () -> process(connection, data, receivedAt));
 
-                Gson gson = new Gson();
-                this.clusteredData.forEach((syncType, hashMap) -> {
-                    final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PLAYERS_CLUSTER_DATA);
+        //Set message has handles to avoid client spam/forwarding
+        event.setResult(PluginMessageEvent.ForwardResult.handled());
+    }
 
-                    message.writeString(syncType.toString());
-                    message.writeString(gson.toJson(hashMap));
+    /*
+     * Return what the inbound queue does with the given plugin message when it is full. Sequenced
+     * envelopes are peeked into, fragments and batches may carry anything so they are never dropped.
+     */
+    private static OverflowPolicy getOverflowPolicy(byte[] data) {
+        if (!Protocol.isEnvelope(data))
+            return OverflowPolicy.of(IncomingMessage.peekAction(data));
 
-                    VelocityControl.broadcastPacket(message);
-                    SyncedCache.upload(syncType, hashMap);
-                });
+        if (Protocol.getEnvelopeType(data) != Protocol.SEQUENCED)
+            return OverflowPolicy.BLOCK;
 
-                this.clusteredData.clear();
-            }
-        }).delay(1000, TimeUnit.MILLISECONDS)
-        .repeat(1000, TimeUnit.MILLISECONDS)
-        .schedule();
-    }
+        try {
+            final int position = PacketReader.skipVarInt(data, 2) + 8;
 
-    @Subscribe
-    public void onMessageReceived(PluginMessageEvent event) {
-        if (event.getIdentifier() != VelocityControl.CHANNEL) return;
+            // Only compact packets have their action right after the first byte
+            if (position + 1 >= data.length || (data[position] & (Protocol.MAGIC | Protocol.ENVELOPE)) != Protocol.MAGIC)
+                return OverflowPolicy.BLOCK;
+
+            return OverflowPolicy.of(ProxyPacket.getById(PacketReader.readVarInt(data, position + 1)));
+
+        } catch (final IllegalArgumentException ex) {
+            return OverflowPolicy.FAIL;
+        }
+    }
 
-        // Set the connection early to use later
-        this.connection = (ServerConnection) event.getSource();
-        IncomingMessage message = new IncomingMessage(event.getData());
+    /*
+     * Process the plugin message sent over the given connection
+     */
+    private void process(ServerConnection connection, byte[] data, long receivedAt) {
+        guard(connection, () -> {
+            if (Protocol.isEnvelope(data))
+                unwrap(connection, data, receivedAt);
+            else
+                receive(connection, data, receivedAt);
+        });
+    }
 
+    /*
+     * Run the given step of processing a packet, reporting what went wrong
+     */
+    private static void guard(ServerConnection connection, Runnable step) {
         try {
-            handle(message);
+            step.run();
 
         } catch (final Throwable t) {
             t.printStackTrace();
@@ -117,83 +135,199 @@ public final class VelocityControlListener {
                     "Server: " + connection.getServerInfo().getName(),
                     "Error: " + t.getClass().getSimpleName() + ": " + t.getMessage());
         }
+    }
 
-        //Set message has handles to avoid client spam/forwarding
-        event.setResult(PluginMessageEvent.ForwardResult.handled());
+    /*
+     * Process the packets in the given envelope
+     */
+    private void unwrap(ServerConnection connection, byte[] envelope, long receivedAt) {
+        final int type = Protocol.getEnvelopeType(envelope);
+
+        if (type == Protocol.FRAGMENT) {
+
+            // Fragments stream into the cache right away, so they must wait behind packets the rate limiter held up too
+            if (InboundExecutor.deferIfPaused(connection.getServerInfo().getName(), () -> guard(connection, () -> unwrap(connection, envelope, receivedAt))))
+                return;
+
+            final byte[] data = Fragments.accept(connection.getServerInfo().getName(), envelope, new Fragments.EntryConsumer() {
+
+                @Override
+                public boolean begin(ProxyPacket action) {
+                    final long wait = RateLimiter.acquire(connection.getServerInfo().getName(), action);
+
+                    // The packet streams in right away, so the packets after it wait in its place
+                    if (wait > 0)
+                        InboundExecutor.pause(connection.getServerInfo().getName(), wait, () -> {});
+
+                    return wait >= 0;
+                }
+
+                // Same as handling PLAYERS_CLUSTER_DATA, once the last fragment arrived
+                @Override
+                public void accept(String syncType, String playerName, String line) {
+                    ClusterSync.getInstance().accept(SyncType.valueOf(syncType), playerName, line, receivedAt, connection.getServerInfo().getName());
+                }
+            });
+
+            if (data != null)
+                receive(connection, data, receivedAt);
+
+        } else if (type == Protocol.BATCH)
+            Batcher.unwrap(envelope, data -> receive(connection, data, receivedAt));
+
+        else if (type == Protocol.SEQUENCED)
+            process(connection, LinkStats.accept(connection.getServerInfo().getName(), envelope), receivedAt);
+
+        else
+            throw new IllegalArgumentException("Unknown envelope type " + type);
+    }
+
+    /*
+     * Apply the rate limit to incoming packet, then route it
+     */
+    private void receive(ServerConnection connection, byte[] data, long receivedAt) {
+        final String serverName = connection.getServerInfo().getName();
+
+        // Packets after one the rate limiter held up wait behind it, such as the rest of its batch
+        if (InboundExecutor.deferIfPaused(serverName, () -> guard(connection, () -> receive(connection, data, receivedAt))))
+            return;
+
+        final ProxyPacket packet = IncomingMessage.peekAction(data);
+
+        // Never shed the hello since the server would stay on the legacy protocol
+        if (packet != ProxyPacket.PROTOCOL_HELLO) {
+            final long wait = RateLimiter.acquire(serverName, packet);
+
+            if (wait < 0)
+                return;
+
+            // Hold up only this server until its turn, without keeping a thread waiting
+            if (wait > 0) {
+                InboundExecutor.pause(serverName, wait, () -> guard(connection, () -> route(connection, packet, data, receivedAt)));
+
+                return;
+            }
+        }
+
+        route(connection, packet, data, receivedAt);
+    }
+
+    /*
+     * Route incoming packet, relaying it as it is unless we need to read it
+     */
+    private void route(ServerConnection connection, ProxyPacket packet, byte[] data, long receivedAt) {
+        // A server that negotiated the compact protocol only sends legacy packets after being downgraded
+        if (packet != ProxyPacket.PROTOCOL_HELLO && Protocol.getVersion(data) == Protocol.LEGACY)
+            Protocol.reset(connection.getServerInfo().getName());
+
+        // Fast path: relay the original bytes, unknown or malformed packets go through
+        // the full reader below so that they are reported properly
+        if (packet != null && isRelayedAsIs(packet))
+            forwardData(connection, packet, data, packet == ProxyPacket.DB_UPDATE);
+        else
+            handle(connection, IncomingMessage.wrap(data), receivedAt);
+    }
+
+    /*
+     * Return true if the packet is relayed without reading anything from its body
+     */
+    private static boolean isRelayedAsIs(ProxyPacket packet) {
+        return !CONSUMED_PACKETS.contains(packet) && !RoutingTable.isUnicast(packet) && !(packet == ProxyPacket.NOTIFY && PermissionIndex.isEnabled());
     }
 
     /*
      * Handle and process incoming packet
      */
-    private void handle(IncomingMessage message) {
+    private void handle(ServerConnection connection, IncomingMessage message, long receivedAt) {
         // Get the raw data
         final byte[] data = message.getData();
 
-        // Read the first three values of the packet, these are always the same
-        this.senderUid = message.getSenderUid();
-        this.serverName = Settings.getServerNameAlias(message.getServerName());
+        // Only the action is needed to route the packet, other header fields are decoded on demand
         final ProxyPacket packet = message.getAction();
 
+        // Fail before reading anything from packets we consume, relayed ones are checked for what we read
+        if (CONSUMED_PACKETS.contains(packet))
+            message.validate();
+
         if (packet == ProxyPacket.PLAYERS_CLUSTER_DATA) {
-            synchronized (this.clusteredData) {
-                final SyncType syncType = SyncType.valueOf(message.readString());
-                final HashMap dataMap = message.readMap();
-
-                final HashMap oldData = this.clusteredData.getOrDefault(syncType, new HashMap());
-                dataMap.forEach((key, value) -> {
-                    if(key != null && value != null && !oldData.containsKey(key)) {
-                        oldData.put(key, value);
-                    }
-                });
-                this.clusteredData.put(syncType, oldData);
-            }
+            final SyncType syncType = SyncType.valueOf(message.readString());
+
+            // Stream the entries straight in, the last one received wins
+            message.readStringMap((playerName, line) -> ClusterSync.getInstance().accept(syncType, playerName, line, receivedAt, connection.getServerInfo().getName()));
         } else if (packet == ProxyPacket.FORWARD_COMMAND) {
             final String server = message.readString();
-            final String command = message.readString().replace("{server_name}", serverName);
+            final String command = message.readString().replace("{server_name}", Settings.getServerNameAlias(message.getServerName()));
 
             if ("velocity".equals(server)) {
                 VelocityControl.getServer().getCommandManager().executeAsync(VelocityControl.getServer().getConsoleCommandSource(), command);
             } else {
-                forwardData(data, false);
+                forwardData(connection, packet, data, false);
             }
         } else if (packet == ProxyPacket.CONFIRM_PLAYER_READY) {
             final UUID uniqueId = message.readUUID();
             final String syncedCacheLine = message.readString();
             final Optional<Player> player = VelocityControl.getServer().getPlayer(uniqueId);
 
-            VelocityControl.getLogger().error(uniqueId + " - Received ProxyPacket.CONFIRM_PLAYER_READY");
+            Debugger.debug("packet", uniqueId + " - Received ProxyPacket.CONFIRM_PLAYER_READY");
             if (player.isPresent()) {
                 SyncedCache.uploadSingle(player.get().getUsername(), uniqueId, syncedCacheLine);
                 SwitchListener.broadcastPendingMessage(player.get());
             }
+        } else if (packet == ProxyPacket.PROTOCOL_HELLO) {
+            Protocol.negotiate(connection, message.readInt(), message.readInt());
+
+        } else if (packet == ProxyPacket.PLAYERS_SNAPSHOT_REQUEST) {
+            PresenceSync.getInstance().sendSnapshot(connection.getServer());
+
+        } else if (packet == ProxyPacket.DATA_TREE_REQUEST) {
+            ClusterSync.getInstance().answer(connection.getServer(), message.readInt(), message.readInt());
+
+        } else if (RoutingTable.isUnicast(packet)) {
+            forwardToReceiver(connection, packet, message);
+
+        } else if (packet == ProxyPacket.NOTIFY && PermissionIndex.isEnabled()) {
+            forwardData(connection, packet, data, false, message.validate(1).readString());
+
         } else {
-            forwardData(data, packet == ProxyPacket.DB_UPDATE);
+            forwardData(connection, packet, data, packet == ProxyPacket.DB_UPDATE);
         }
     }
 
     /*
-     * Forward the given data with optional sender unique ID to all other servers
-     * or Redis
+     * Forward the given packet only to the server of the player it is addressed to
      */
-    private void forwardData(byte[] data, boolean forceSelf) {
-        for (final RegisteredServer server : VelocityControl.getServers()) {
-            final String iteratedName = server.getServerInfo().getName();
-            final RegisteredServer iteratedServer = server;
+    private void forwardToReceiver(ServerConnection connection, ProxyPacket packet, IncomingMessage message) {
+        final UUID receiver;
 
-            if (iteratedServer.getPlayersConnected().isEmpty()) {
-                Debugger.debug("packet", "\tDid not send to '" + iteratedName + "', the server is empty");
-
-                continue;
-            }
+        // Some packets declare the receiver as a string but all of them send a unique id
+        try {
+            message.validate(1);
 
-            if (!forceSelf && iteratedServer.getServerInfo().getAddress().equals(this.connection.getServerInfo().getAddress())) {
-                Debugger.debug("packet", "\tDid not send to '" + iteratedName + "', the server equals sender");
+            receiver = PacketCodec.of(packet).matches(0, PacketCodec.FieldType.UUID) ? message.readUUID() : UUID.fromString(message.readString());
 
-                continue;
-            }
+        } catch (final IllegalArgumentException ex) {
+            forwardData(connection, packet, message.getData(), false);
 
-            Debugger.debug("packet", "\tForwarded to '" + iteratedName + "'");
-            iteratedServer.sendPluginMessage(VelocityControl.CHANNEL, data);
+            return;
         }
+
+        Relay.unicast(Payload.of(packet, message.getData()), receiver, Protocol.getServerId(connection.getServerInfo().getName()));
+    }
+
+    /*
+     * Forward the given data with optional sender unique ID to all other servers
+     * or Redis, limited to the sender's cluster for packets that only matter there
+     */
+    private void forwardData(ServerConnection connection, ProxyPacket packet, byte[] data, boolean forceSelf) {
+        forwardData(connection, packet, data, forceSelf, packet == ProxyPacket.SPY && PermissionIndex.isEnabled() ? PermissionIndex.SPY_PERMISSION : null);
+    }
+
+    /*
+     * Forward the given data only to servers where a player has the given permission, if not null
+     */
+    private void forwardData(ServerConnection connection, ProxyPacket packet, byte[] data, boolean forceSelf, String permission) {
+        final String serverName = connection.getServerInfo().getName();
+
+        Relay.broadcast(Payload.of(packet, data), forceSelf ? Relay.NO_EXCLUSION : Protocol.getServerId(serverName), RoutingTable.getScope(packet, serverName), permission);
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,7 @@
 package org.mineacademy.velocitycontrol.model;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -15,7 +17,8 @@ import lombok.Getter;
  * 2) The sender server name
  * 3) The {@link ProxyPacket}
  *
- * and the rest is the actual data within this enum
+ * and the rest is the actual data within this enum. See
+ * {@link org.mineacademy.velocitycontrol.network.Protocol} for the compact header.
  */
 public enum ProxyPacket {
 
@@ -162,11 +165,102 @@ public enum ProxyPacket {
 	 * Sync of data between servers using BungeeCord
 	 */
 	PLAYERS_CLUSTER_DATA(String.class, /*sync type*/
-			String.class /*map*/
+			HashMap.class /*name-data line map*/
+	),
+
+	// ----------------------------------------------------------------------------------------------------
+	// Protocol
+	// ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Negotiates the wire protocol version between the proxy and a server. Servers send
+	 * their highest supported version and features with 0 and an empty json list for the rest,
+	 * the proxy answers with the agreed ones, the id it assigned to that server and the json
+	 * list of all server names by their id.
+	 */
+	PROTOCOL_HELLO(Integer.class /*version*/, Integer.class /*features*/, Integer.class /*server id*/, String.class /*json server name table*/
+	),
+
+	// ----------------------------------------------------------------------------------------------------
+	// Presence, only for servers that negotiated it
+	// ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * A player joined the network
+	 */
+	PLAYERS_JOINED(String.class /*player name*/, String.class /*player uuid*/
+	),
+
+	/**
+	 * A player left the network
+	 */
+	PLAYERS_LEFT(String.class /*player name*/, String.class /*player uuid*/
+	),
+
+	/**
+	 * The player count and the xor of fmix32(name.hashCode() * 31 + uuid.hashCode()) over all
+	 * players on the network. Servers that count otherwise send {@link #PLAYERS_SNAPSHOT_REQUEST}.
+	 */
+	PLAYERS_CHECKSUM(Integer.class /*player count*/, Integer.class /*checksum*/
+	),
+
+	/**
+	 * Ask the proxy for the full {@link #PLAYERS_CLUSTER_HEADER}
+	 */
+	PLAYERS_SNAPSHOT_REQUEST(
+	),
+
+	// ----------------------------------------------------------------------------------------------------
+	// Anti entropy, only for servers that negotiated it
+	// ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Hashes of consecutive nodes of the tree over {@link #PLAYERS_CLUSTER_DATA} lines. A line hashes to
+	 * fmix32((name.hashCode() * 31 + syncType.hashCode()) * 31 + line.hashCode()) with the sync type name,
+	 * its bucket at level 2 is the first byte of the player uuid and holds the xor of its lines. Nodes at
+	 * level 1 and the root at level 0 are Arrays.hashCode of their 16 children. The root is sent every
+	 * sync tick, the lines of a requested bucket are followed by its hash.
+	 */
+	DATA_TREE(Integer.class /*level*/, Integer.class /*first node*/, String.class /*comma separated hex hashes*/
+	),
+
+	/**
+	 * Ask the proxy for the children of a node in {@link #DATA_TREE}, or the lines of a bucket
+	 */
+	DATA_TREE_REQUEST(Integer.class /*level*/, Integer.class /*node*/
 	),
 
 	;
 
+	/**
+	 * All values by their ordinal, which is the opcode used by the compact protocol.
+	 * New packets must therefore always be appended at the end.
+	 */
+	private static final ProxyPacket[] BY_ID = values();
+
+	/**
+	 * Packet names encoded as they appear on the wire, indexed by their length
+	 * so that a raw action field can be matched without decoding it
+	 */
+	private static final ProxyPacket[][] BY_NAME_LENGTH;
+
+	static {
+		final ProxyPacket[] actions = values();
+		int longest = 0;
+
+		for (final ProxyPacket action : actions)
+			longest = Math.max(longest, action.name().length());
+
+		BY_NAME_LENGTH = new ProxyPacket[longest + 1][0];
+
+		for (final ProxyPacket action : actions) {
+			final int length = action.name().length();
+
+			BY_NAME_LENGTH[length] = Arrays.copyOf(BY_NAME_LENGTH[length], BY_NAME_LENGTH[length].length + 1);
+			BY_NAME_LENGTH[length][BY_NAME_LENGTH[length].length - 1] = action;
+		}
+	}
+
 	/**
 	 * Stores all valid values, the names of them are only used
 	 * in the error message when the length of data does not match
@@ -174,6 +268,16 @@ public enum ProxyPacket {
 	@Getter
 	private final Class<?>[] content;
 
+	/**
+	 * The name as written by writeUTF, without the length prefix (all names are ASCII)
+	 */
+	private final byte[] nameBytes;
+
+	/**
+	 * True if any of the values is a map, see {@link org.mineacademy.velocitycontrol.network.MapCodec}
+	 */
+	private final boolean maps;
+
 	/**
 	 * Constructs a new bungee action
 	 *
@@ -181,6 +285,47 @@ public enum ProxyPacket {
 	 */
 	ProxyPacket(final Class<?>... validValues) {
 		this.content = validValues;
+		this.nameBytes = this.name().getBytes(StandardCharsets.US_ASCII);
+		this.maps = Arrays.asList(validValues).contains(HashMap.class);
+	}
+
+	/**
+	 * Return true if this action carries maps, which are encoded differently
+	 * for servers that negotiated binary maps
+	 *
+	 * @return
+	 */
+	public boolean hasMaps() {
+		return this.maps;
+	}
+
+	/**
+	 * Return true if receivers merge the entries of the last map of this action into what they have,
+	 * so a map too large for one packet may be sent over several packets carrying part of it each
+	 *
+	 * @return
+	 */
+	public boolean hasMergedMap() {
+		return this == PLAYERS_CLUSTER_DATA;
+	}
+
+	/**
+	 * Return the opcode of this action in the compact protocol
+	 *
+	 * @return
+	 */
+	public int getId() {
+		return this.ordinal();
+	}
+
+	/**
+	 * Gets an action by its opcode
+	 *
+	 * @param id
+	 * @return the action, or null if the id is out of range
+	 */
+	public static ProxyPacket getById(int id) {
+		return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
 	}
 
 	/**
@@ -199,4 +344,23 @@ public enum ProxyPacket {
 
 		return null;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Gets an action by its raw encoded name without decoding it into a string
+	 *
+	 * @param data
+	 * @param offset the offset of the first name byte
+	 * @param length the amount of name bytes
+	 * @return the action, or null if no action has this name
+	 */
+	public static ProxyPacket getByName(byte[] data, int offset, int length) {
+		if (length >= BY_NAME_LENGTH.length)
+			return null;
+
+		for (final ProxyPacket action : BY_NAME_LENGTH[length])
+			if (Arrays.equals(action.nameBytes, 0, length, data, offset, offset + length))
+				return action;
+
+		return null;
+	}
+}
@@ -0,0 +1,249 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces packets bound for the same server within {@link Settings.Network#Batch_Window}
+ * milliseconds into one plugin message, for servers with {@link Protocol#FEATURE_BATCHING}.
+ *
+ * A batch is a compact envelope, see {@link Protocol#ENVELOPE}, of type {@link Protocol#BATCH}:
+ *
+ * 1) The amount of packets as a varint
+ * 2) Each packet as its length as a varint followed by its bytes
+ *
+ * A batch is flushed when its window ends, when the next packet would make it larger than
+ * {@link Settings.Network#Batch_Max_Size} or right before a packet that is too large to batch
+ * is sent, so packets sent from one thread always arrive in the order they were sent.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Batcher {
+
+	/**
+	 * The bytes a batch envelope adds in front of its packets, at most
+	 */
+	private static final int ENVELOPE_OVERHEAD = 2 + 5;
+
+	/**
+	 * Pending batches by server name
+	 */
+	private static final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+	/**
+	 * Flushed batches by why they were flushed, and the packets and bytes in them
+	 */
+	private static final LongAdder flushedByTimer = new LongAdder();
+	private static final LongAdder flushedBySize = new LongAdder();
+	private static final LongAdder flushedByOrder = new LongAdder();
+	private static final LongAdder batchedPackets = new LongAdder();
+	private static final LongAdder batchedBytes = new LongAdder();
+
+	/**
+	 * Return true if packets for the given server are batched
+	 *
+	 * @param serverName
+	 * @return
+	 */
+	public static boolean isEnabled(String serverName) {
+		return Settings.getSettings().Network.Batch_Window > 0 && (Protocol.getFeatures(serverName) & Protocol.FEATURE_BATCHING) != 0;
+	}
+
+	/**
+	 * Add the packet to the pending batch of the given server, or flush the batch
+	 * and let the caller send the packet itself if it is too large to batch
+	 *
+	 * @param server
+	 * @param data
+	 * @return true if the packet was batched, false if the caller must send it now
+	 */
+	public static boolean offer(RegisteredServer server, byte[] data) {
+		final Batch batch = batches.computeIfAbsent(server.getServerInfo().getName(), name -> new Batch(server));
+		final int maxSize = Settings.getSettings().Network.Batch_Max_Size;
+		final int entrySize = PacketWriter.getVarIntSize(data.length) + data.length;
+
+		synchronized (batch) {
+			if (ENVELOPE_OVERHEAD + entrySize > maxSize) {
+				if (batch.flush())
+					flushedByOrder.increment();
+
+				return false;
+			}
+
+			if (batch.size + entrySize > maxSize && batch.flush())
+				flushedBySize.increment();
+
+			if (batch.packets.isEmpty())
+				scheduleFlush(batch);
+
+			batch.packets.add(data);
+			batch.size += entrySize;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Send all pending batches right away, e.g. when shutting down
+	 */
+	public static void flushAll() {
+		for (final Batch batch : batches.values())
+			synchronized (batch) {
+				batch.flush();
+			}
+	}
+
+	/**
+	 * Forget the pending batch of the given server, called when it falls back
+	 * to the legacy protocol and can no longer read it
+	 *
+	 * @param serverName
+	 */
+	public static void clear(String serverName) {
+		final Batch batch = batches.remove(serverName);
+
+		if (batch != null)
+			synchronized (batch) {
+				batch.packets.clear();
+				batch.generation++;
+			}
+	}
+
+	/*
+	 * Flush the batch once its window ends, unless it was flushed earlier
+	 */
+	private static void scheduleFlush(Batch batch) {
+		final long generation = batch.generation;
+
+		VelocityControl.getServer().getScheduler().buildTask(VelocityControl.getInstance(), () -> {
+			synchronized (batch) {
+				if (batch.generation == generation && batch.flush())
+					flushedByTimer.increment();
+			}
+		}).delay(Settings.getSettings().Network.Batch_Window, TimeUnit.MILLISECONDS).schedule();
+	}
+
+	/**
+	 * Write the given packets into one batch envelope
+	 *
+	 * @param packets
+	 * @return
+	 */
+	public static byte[] wrap(List<byte[]> packets) {
+		int size = ENVELOPE_OVERHEAD;
+
+		for (final byte[] packet : packets)
+			size += PacketWriter.getVarIntSize(packet.length) + packet.length;
+
+		final PacketWriter out = PacketWriter.borrow(size);
+
+		try {
+			out.writeByte(Protocol.MAGIC | Protocol.ENVELOPE | Protocol.COMPACT);
+			out.writeByte(Protocol.BATCH);
+			out.writeVarInt(packets.size());
+
+			for (final byte[] packet : packets) {
+				out.writeVarInt(packet.length);
+				out.write(packet);
+			}
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Pass each packet in the given batch envelope to the consumer
+	 *
+	 * @param envelope
+	 * @param consumer
+	 * @throws IllegalArgumentException if the envelope is malformed
+	 */
+	public static void unwrap(byte[] envelope, Consumer<byte[]> consumer) {
+		final int count = PacketReader.readVarInt(envelope, 2);
+		int position = PacketReader.skipVarInt(envelope, 2);
+
+		// Split all packets first so that a malformed envelope is not handled halfway
+		final byte[][] packets = new byte[count][];
+
+		for (int index = 0; index < count; index++) {
+			final int length = PacketReader.readVarInt(envelope, position);
+			position = PacketReader.skipVarInt(envelope, position);
+
+			if (length < 0 || position + length > envelope.length)
+				throw new IllegalArgumentException("Malformed batch, packet #" + (index + 1) + " of " + length + " bytes overflows the envelope");
+
+			packets[index] = Arrays.copyOfRange(envelope, position, position + length);
+			position += length;
+		}
+
+		for (final byte[] packet : packets)
+			consumer.accept(packet);
+	}
+
+	/**
+	 * Return the human readable batching statistics since startup
+	 *
+	 * @return
+	 */
+	public static String getStatistics() {
+		final long flushes = flushedByTimer.sum() + flushedBySize.sum() + flushedByOrder.sum();
+		final long packets = batchedPackets.sum();
+
+		return "Batches: " + flushes + " flushed (" + flushedByTimer.sum() + " by window, " + flushedBySize.sum() + " by size, " + flushedByOrder.sum() + " before a large packet), "
+				+ packets + " packets, " + batchedBytes.sum() + " bytes" + (flushes > 0 ? ", " + String.format("%.1f", (double) packets / flushes) + " packets per flush" : "");
+	}
+
+	/*
+	 * The pending packets of one server, guarded by its own monitor
+	 */
+	private static final class Batch {
+
+		private final RegisteredServer server;
+		private final List<byte[]> packets = new ArrayList<>();
+		private int size = ENVELOPE_OVERHEAD;
+
+		/**
+		 * Increased with each flush so that a stale timer does not flush the next batch early
+		 */
+		private long generation;
+
+		private Batch(RegisteredServer server) {
+			this.server = server;
+		}
+
+		/*
+		 * Send the pending packets, a single packet is sent without the envelope
+		 */
+		private boolean flush() {
+			if (this.packets.isEmpty())
+				return false;
+
+			final byte[] data = this.packets.size() == 1 ? this.packets.get(0) : wrap(this.packets);
+
+			Relay.sendPluginMessage(this.server, data);
+
+			batchedPackets.add(this.packets.size());
+			batchedBytes.add(data.length);
+
+			this.packets.clear();
+			this.size = ENVELOPE_OVERHEAD;
+			this.generation++;
+
+			return true;
+		}
+	}
+}
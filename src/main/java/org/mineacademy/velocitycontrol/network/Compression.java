@@ -0,0 +1,149 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates packet bodies with a preset dictionary of the keys and values
+ * repeated in our sync packets, so that even small json maps compress well.
+ *
+ * The dictionary is part of the protocol, servers must use the exact same bytes.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Compression {
+
+	/**
+	 * The preset dictionary, the most frequent strings are at the end where they are cheapest to reference
+	 */
+	static final byte[] DICTIONARY = ("PLAYERS_CLUSTER_HEADERPLAYERS_CLUSTER_DATAMAIL_SYNCDB_UPDATE"
+			+ "SERVERNICKVANISHAFKIGNORE_PMSIGNORE_SOUND_NOTIFYIGNORECHANNELSVAULTPACK_LOADED"
+			+ "{\"text\":\"\",\"extra\":[{\"color\":\"\",\"bold\":false,\"italic\":false}]}"
+			+ "\"sender\":\"\",\"receiver\":\"\",\"title\":\"\",\"body\":\"\",\"sent\":\"\",\"uniqueId\":\""
+			+ "globalstandardreadwritedefaultfalsetrue"
+			+ ".<<S:.<<N:.<<V:0.<<A:0.<<IM:0.<<IN:0.<<IP:.<<C:.<<G:default.<<P:"
+			+ "-0000-0000-0000-000000000000\",\"\":\"").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * The largest body we accept to inflate
+	 */
+	private static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Bodies deflated, and those sent compressed with their size before and after
+	 */
+	private static final LongAdder attempts = new LongAdder();
+	private static final LongAdder compressed = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Deflate the given range into the writer, call {@link #record(int, int)} if the result is sent
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @return the amount of deflated bytes written
+	 */
+	public static int compress(byte[] data, int offset, int length, PacketWriter out) {
+		final Deflater deflater = DEFLATER.get();
+		final byte[] chunk = new byte[Math.min(8192, length + 64)];
+		final int start = out.size();
+
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+
+		while (!deflater.finished()) {
+			final int written = deflater.deflate(chunk);
+
+			out.write(chunk, 0, written);
+		}
+
+		attempts.increment();
+
+		return out.size() - start;
+	}
+
+	/**
+	 * Count a body sent compressed, since bodies that do not shrink are sent as they are
+	 *
+	 * @param length the size of the body
+	 * @param compressedLength its deflated size
+	 */
+	static void record(int length, int compressedLength) {
+		compressed.increment();
+		bytesIn.add(length);
+		bytesOut.add(compressedLength);
+	}
+
+	/**
+	 * Inflate the given range into the writer
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param inflatedLength the expected inflated size
+	 * @param out
+	 */
+	public static void decompress(byte[] data, int offset, int length, int inflatedLength, PacketWriter out) {
+		checkInflatedSize(inflatedLength);
+
+		final Inflater inflater = INFLATER.get();
+		final byte[] chunk = new byte[inflatedLength];
+		int inflated = 0;
+
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+
+		try {
+			while (inflated < inflatedLength && !inflater.finished()) {
+				final int read = inflater.inflate(chunk, inflated, inflatedLength - inflated);
+
+				if (read == 0 && inflater.needsDictionary())
+					inflater.setDictionary(DICTIONARY);
+
+				else if (read == 0 && (inflater.needsInput() || inflater.finished()))
+					break;
+
+				inflated += read;
+			}
+
+		} catch (final DataFormatException ex) {
+			throw new IllegalArgumentException("Malformed compressed packet: " + ex.getMessage(), ex);
+		}
+
+		Preconditions.checkArgument(inflated == inflatedLength, "Malformed compressed packet, inflated " + inflated + " out of " + inflatedLength + " bytes");
+		out.write(chunk, 0, inflated);
+	}
+
+	/**
+	 * Fail if the peer declared an inflated size we do not accept, call before
+	 * allocating anything for it
+	 *
+	 * @param inflatedLength
+	 */
+	static void checkInflatedSize(int inflatedLength) {
+		Preconditions.checkArgument(inflatedLength >= 0 && inflatedLength <= MAX_INFLATED_SIZE, "Refusing to inflate " + inflatedLength + " bytes");
+	}
+
+	/**
+	 * Return the human readable compression statistics since startup
+	 *
+	 * @return
+	 */
+	public static String getStatistics() {
+		return "Compression: " + compressed.sum() + " of " + attempts.sum() + " deflated bodies sent compressed, " + bytesIn.sum() + " bytes to " + bytesOut.sum() + " bytes";
+	}
+}
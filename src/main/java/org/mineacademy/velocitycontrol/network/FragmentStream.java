@@ -0,0 +1,348 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a fragmented packet with a merged map, see {@link ProxyPacket#hasMergedMap()}, as its
+ * fragments arrive in order. Only the bytes of the entry cut by a fragment boundary are kept
+ * between fragments, so the packet is never reassembled in full. Deflated bodies are inflated
+ * as they come in. The decoded entries are handed to the consumer only once the whole packet
+ * checked out, so a malformed or missing fragment applies none of them.
+ *
+ * The packet must be compact with binary maps and its fields must be a string followed by the map.
+ */
+final class FragmentStream {
+
+	/**
+	 * What is decoded next
+	 */
+	private static final int HEADER = 0;
+	private static final int FIELD = 1;
+	private static final int MAP_HEADER = 2;
+	private static final int ENTRIES = 3;
+	private static final int DONE = 4;
+
+	/**
+	 * Where the entries go, null if the packet is skipped
+	 */
+	private final Fragments.EntryConsumer consumer;
+
+	/**
+	 * Decoded bytes not consumed yet, starting at {@link #position}
+	 */
+	private byte[] buffer = new byte[1024];
+	private int position;
+	private int length;
+
+	/**
+	 * The inflater of a deflated body once the header is read, null otherwise
+	 */
+	private Inflater inflater;
+
+	/**
+	 * The declared inflated size of a deflated body and how much of it we inflated
+	 */
+	private int inflatedLength;
+	private int inflated;
+
+	private int stage = HEADER;
+
+	/**
+	 * The string field in front of the map
+	 */
+	private String field;
+
+	/**
+	 * The map value type, the entries and map bytes left to read
+	 */
+	private int valueType;
+	private int entriesLeft;
+	private int mapBytesLeft;
+
+	/**
+	 * Keys and values of the decoded entries one after another, until the packet is finished
+	 */
+	private final List<String> entries = new ArrayList<>();
+
+	private FragmentStream(Fragments.EntryConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Start streaming the packet whose first fragment is at the given offset,
+	 * or return null if it must be reassembled in full instead
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param consumer
+	 * @return
+	 */
+	static FragmentStream open(byte[] data, int offset, int length, Fragments.EntryConsumer consumer) {
+		if (consumer == null || length < 6)
+			return null;
+
+		final int first = data[offset] & 0xFF;
+
+		if ((first & (Protocol.MAGIC | Protocol.ENVELOPE | Protocol.BINARY_MAPS | Protocol.VERSION_MASK)) != (Protocol.MAGIC | Protocol.BINARY_MAPS | Protocol.COMPACT))
+			return null;
+
+		final ProxyPacket action = ProxyPacket.getById(PacketReader.readVarInt(data, offset + 1));
+
+		if (action == null || !action.hasMergedMap())
+			return null;
+
+		return new FragmentStream(consumer.begin(action) ? consumer : null);
+	}
+
+	/**
+	 * Decode the next bytes of the packet, handing over the entries completed by them
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IllegalArgumentException if the packet is malformed
+	 */
+	void feed(byte[] data, int offset, int length) {
+		if (this.consumer == null)
+			return;
+
+		if (this.inflater == null) {
+			this.append(data, offset, length);
+			this.decode();
+
+		} else
+			this.inflate(data, offset, length);
+	}
+
+	/**
+	 * Hand the entries to the consumer, or fail if the packet ended before all of them,
+	 * called once all fragments were fed
+	 */
+	void finish() {
+		if (this.consumer != null) {
+			Preconditions.checkArgument(this.stage == DONE, "Malformed streamed packet, it ended before its map did");
+			Preconditions.checkArgument(this.inflater == null || this.inflated == this.inflatedLength, "Malformed compressed packet, inflated " + this.inflated + " out of " + this.inflatedLength + " bytes");
+		}
+
+		this.close();
+
+		if (this.consumer != null)
+			for (int index = 0; index < this.entries.size(); index += 2)
+				this.consumer.accept(this.field, this.entries.get(index), this.entries.get(index + 1));
+	}
+
+	/**
+	 * Release the inflater, called when the packet is complete or dropped
+	 */
+	void close() {
+		if (this.inflater != null) {
+			this.inflater.end();
+			this.inflater = null;
+		}
+	}
+
+	/*
+	 * Inflate the given deflated bytes, decoding as the buffer fills up
+	 */
+	private void inflate(byte[] data, int offset, int length) {
+		this.inflater.setInput(data, offset, length);
+
+		try {
+			while (true) {
+				this.ensureCapacity(this.length + 8192);
+
+				final int read = this.inflater.inflate(this.buffer, this.length, this.buffer.length - this.length);
+
+				if (read == 0 && this.inflater.needsDictionary()) {
+					this.inflater.setDictionary(Compression.DICTIONARY);
+
+					continue;
+				}
+
+				if (read == 0 && (this.inflater.needsInput() || this.inflater.finished()))
+					break;
+
+				this.inflated += read;
+				Preconditions.checkArgument(this.inflated <= this.inflatedLength, "Malformed compressed packet, inflates past its declared " + this.inflatedLength + " bytes");
+
+				this.length += read;
+				this.decode();
+			}
+
+		} catch (final DataFormatException ex) {
+			throw new IllegalArgumentException("Malformed compressed packet: " + ex.getMessage(), ex);
+		}
+	}
+
+	/*
+	 * Decode as far as the buffered bytes go, keeping the incomplete rest
+	 */
+	private void decode() {
+		while (this.stage != DONE && this.decodeNext())
+			;
+
+		// Anything a newer server appended after the map is ignored
+		if (this.stage == DONE)
+			this.position = this.length;
+
+		if (this.position > 0) {
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, this.length - this.position);
+
+			this.length -= this.position;
+			this.position = 0;
+		}
+	}
+
+	/*
+	 * Decode the next part of the packet, returning false if its bytes did not all arrive yet
+	 */
+	private boolean decodeNext() {
+		if (this.stage == HEADER)
+			return this.decodeHeader();
+
+		if (this.stage == FIELD) {
+			final int end = this.getUTFEnd(this.position);
+
+			if (end == -1)
+				return false;
+
+			this.field = PacketReader.readUTF(this.buffer, this.position);
+			this.position = end;
+			this.stage = MAP_HEADER;
+
+			return true;
+		}
+
+		if (this.stage == MAP_HEADER) {
+			final int sizeEnd = this.getVarIntEnd(this.position + 5);
+
+			if (sizeEnd == -1)
+				return false;
+
+			this.mapBytesLeft = PacketReader.readInt(this.buffer, this.position) - (sizeEnd - this.position - 4);
+			this.valueType = this.buffer[this.position + 4];
+			this.entriesLeft = PacketReader.readVarInt(this.buffer, this.position + 5);
+
+			Preconditions.checkArgument(this.valueType == MapCodec.STRING_VALUES || this.valueType == MapCodec.UUID_VALUES, "unknown map value type " + this.valueType);
+			Preconditions.checkArgument(this.mapBytesLeft >= 0 && this.entriesLeft >= 0, "Malformed streamed packet, map length does not fit its header");
+
+			this.position = sizeEnd;
+			this.stage = ENTRIES;
+
+			return true;
+		}
+
+		if (this.entriesLeft == 0) {
+			Preconditions.checkArgument(this.mapBytesLeft == 0, "Malformed streamed packet, map entries leave " + this.mapBytesLeft + " bytes of its length");
+			this.stage = DONE;
+
+			return true;
+		}
+
+		final int keyEnd = this.getUTFEnd(this.position);
+
+		if (keyEnd == -1)
+			return false;
+
+		final int valueEnd = this.valueType == MapCodec.UUID_VALUES ? (keyEnd + 16 <= this.length ? keyEnd + 16 : -1) : this.getUTFEnd(keyEnd);
+
+		if (valueEnd == -1)
+			return false;
+
+		final String key = PacketReader.readUTF(this.buffer, this.position);
+		final String value = this.valueType == MapCodec.UUID_VALUES
+				? new UUID(PacketReader.readLong(this.buffer, keyEnd), PacketReader.readLong(this.buffer, keyEnd + 8)).toString()
+				: PacketReader.readUTF(this.buffer, keyEnd);
+
+		this.mapBytesLeft -= valueEnd - this.position;
+		this.entriesLeft--;
+		this.position = valueEnd;
+
+		Preconditions.checkArgument(this.mapBytesLeft >= 0, "Malformed streamed packet, map entries overflow its length");
+		this.entries.add(key);
+		this.entries.add(value);
+
+		return true;
+	}
+
+	/*
+	 * Skip the compact header, switching to inflating the rest if the body is deflated
+	 */
+	private boolean decodeHeader() {
+		final int senderEnd = this.getVarIntEnd(this.position + 1);
+		final int serverEnd = senderEnd == -1 ? -1 : this.getVarIntEnd(senderEnd + 16);
+		final boolean compressed = (this.buffer[this.position] & Protocol.COMPRESSED) != 0;
+		final int bodyStart = serverEnd == -1 || !compressed ? serverEnd : this.getVarIntEnd(serverEnd);
+
+		if (bodyStart == -1)
+			return false;
+
+		this.stage = FIELD;
+
+		if (!compressed) {
+			this.position = bodyStart;
+
+			return true;
+		}
+
+		this.inflatedLength = PacketReader.readVarInt(this.buffer, serverEnd);
+		Compression.checkInflatedSize(this.inflatedLength);
+
+		// What came after the header is deflated, run it through the inflater from the start
+		final byte[] rest = Arrays.copyOfRange(this.buffer, bodyStart, this.length);
+
+		this.position = 0;
+		this.length = 0;
+		this.inflater = new Inflater();
+		this.inflate(rest, 0, rest.length);
+
+		return false;
+	}
+
+	/*
+	 * Return the end of the varint at the given position, or -1 if it did not all arrive yet
+	 */
+	private int getVarIntEnd(int position) {
+		for (int index = position; index < this.length; index++) {
+			Preconditions.checkArgument(index - position < 5, "Malformed streamed packet, varint too long at " + position);
+
+			if ((this.buffer[index] & 0x80) == 0)
+				return index + 1;
+		}
+
+		return -1;
+	}
+
+	/*
+	 * Return the end of the string at the given position, or -1 if it did not all arrive yet
+	 */
+	private int getUTFEnd(int position) {
+		if (position + 2 > this.length)
+			return -1;
+
+		final int end = position + 2 + PacketReader.readUnsignedShort(this.buffer, position);
+
+		return end <= this.length ? end : -1;
+	}
+
+	private void append(byte[] data, int offset, int length) {
+		this.ensureCapacity(this.length + length);
+
+		System.arraycopy(data, offset, this.buffer, this.length, length);
+		this.length += length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > this.buffer.length)
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length * 2));
+	}
+}
@@ -0,0 +1,355 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits packets larger than {@link Settings.Network#Fragment_Size} into fragment envelopes
+ * for servers with {@link Protocol#FEATURE_FRAGMENTS} and reassembles the ones servers send us.
+ *
+ * A fragment is a compact envelope, see {@link Protocol#ENVELOPE}, of type {@link Protocol#FRAGMENT}:
+ *
+ * 1) The message id as a varint, unique per sender
+ * 2) The total length of the packet as a varint
+ * 3) The offset of this fragment in the packet as a varint
+ * 4) The fragment bytes
+ *
+ * Fragments are copied straight to their place in a buffer of the total length, so they may
+ * arrive in any order and the completed packet is handed over without another copy. A fragment
+ * overlapping bytes that already arrived is ignored, so a duplicate cannot complete a packet
+ * that still has holes. Incomplete packets are dropped after {@link Settings.Network#Reassembly_Timeout}
+ * milliseconds.
+ *
+ * Packets with a merged map, see {@link ProxyPacket#hasMergedMap()}, are not reassembled when they
+ * start with their first fragment but decoded by {@link FragmentStream} as the fragments arrive,
+ * so their raw bytes are never held in memory in full. Their entries go to an {@link EntryConsumer}
+ * once the last fragment checked out. Fragments arriving early wait until the ones in front of them came.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Fragments {
+
+	/**
+	 * How many packets may be reassembled from one server at the same time
+	 */
+	private static final int MAX_ASSEMBLIES_PER_SERVER = 8;
+
+	/**
+	 * The next message id for packets we split
+	 */
+	private static final AtomicInteger nextMessageId = new AtomicInteger();
+
+	/**
+	 * Packets being reassembled by server name and message id
+	 */
+	private static final Map<String, Map<Integer, Assembly>> assemblies = new ConcurrentHashMap<>();
+
+	/**
+	 * Fragments sent and received, packets reassembled and dropped incomplete
+	 */
+	private static final LongAdder sent = new LongAdder();
+	private static final LongAdder received = new LongAdder();
+	private static final LongAdder reassembled = new LongAdder();
+	private static final LongAdder streamed = new LongAdder();
+	private static final LongAdder duplicates = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Return true if the given packet must be split for the given server
+	 *
+	 * @param serverName
+	 * @param length
+	 * @return
+	 */
+	public static boolean shouldSplit(String serverName, int length) {
+		final int fragmentSize = Settings.getSettings().Network.Fragment_Size;
+
+		return fragmentSize > 0 && length > fragmentSize && (Protocol.getFeatures(serverName) & Protocol.FEATURE_FRAGMENTS) != 0;
+	}
+
+	/**
+	 * Split the given packet into fragment envelopes of at most the configured fragment size
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static byte[][] split(byte[] data) {
+		final int fragmentSize = Settings.getSettings().Network.Fragment_Size;
+		final int messageId = nextMessageId.getAndIncrement() & Integer.MAX_VALUE;
+		final byte[][] fragments = new byte[(data.length + fragmentSize - 1) / fragmentSize][];
+
+		for (int index = 0; index < fragments.length; index++) {
+			final int offset = index * fragmentSize;
+			final int length = Math.min(fragmentSize, data.length - offset);
+			final PacketWriter out = PacketWriter.borrow(length + 16);
+
+			try {
+				out.writeByte(Protocol.MAGIC | Protocol.ENVELOPE | Protocol.COMPACT);
+				out.writeByte(Protocol.FRAGMENT);
+				out.writeVarInt(messageId);
+				out.writeVarInt(data.length);
+				out.writeVarInt(offset);
+				out.write(data, offset, length);
+
+				fragments[index] = out.toByteArray();
+
+			} finally {
+				out.release();
+			}
+		}
+
+		sent.add(fragments.length);
+		return fragments;
+	}
+
+	/**
+	 * Add the given fragment received from the given server to its packet
+	 *
+	 * @param serverName
+	 * @param data the fragment envelope
+	 * @param consumer where to stream the entries of packets with a merged map, or null to reassemble all packets
+	 * @return the complete packet if this was its last missing fragment and it was not streamed, otherwise null
+	 * @throws IllegalArgumentException if the fragment is malformed or the packet too large
+	 */
+	public static byte[] accept(String serverName, byte[] data, EntryConsumer consumer) {
+		final int messageId = PacketReader.readVarInt(data, 2);
+		final int lengthOffset = PacketReader.skipVarInt(data, 2);
+		final int totalLength = PacketReader.readVarInt(data, lengthOffset);
+		final int offsetOffset = PacketReader.skipVarInt(data, lengthOffset);
+		final int offset = PacketReader.readVarInt(data, offsetOffset);
+		final int chunkOffset = PacketReader.skipVarInt(data, offsetOffset);
+		final int chunkLength = data.length - chunkOffset;
+		final int maxSize = Settings.getSettings().Network.Max_Reassembled_Size;
+
+		Preconditions.checkArgument(totalLength <= maxSize, "Packet of " + totalLength + " bytes from " + serverName + " exceeds Max_Reassembled_Size of " + maxSize);
+		Preconditions.checkArgument(offset >= 0 && offset + chunkLength <= totalLength, "Fragment at " + offset + " of " + chunkLength + " bytes overflows its packet of " + totalLength + " bytes");
+
+		received.increment();
+
+		final Map<Integer, Assembly> pending = assemblies.computeIfAbsent(serverName, name -> new HashMap<>());
+		final byte[] complete;
+
+		synchronized (pending) {
+			final long now = System.currentTimeMillis();
+
+			expire(serverName, pending, now);
+
+			Assembly assembly = pending.get(messageId);
+
+			if (assembly == null) {
+				if (pending.size() >= MAX_ASSEMBLIES_PER_SERVER)
+					dropOldest(serverName, pending);
+
+				assembly = new Assembly(totalLength, now, offset == 0 ? FragmentStream.open(data, chunkOffset, chunkLength, consumer) : null);
+				pending.put(messageId, assembly);
+			}
+
+			Preconditions.checkArgument(assembly.length == totalLength, "Fragment of message " + messageId + " from " + serverName + " disagrees on its length");
+
+			final int overlap = assembly.arrived.nextSetBit(offset);
+
+			if (overlap != -1 && overlap < offset + chunkLength) {
+				duplicates.increment();
+				Debugger.debug("packet", "Ignored fragment at " + offset + " of message " + messageId + " from " + serverName + ", its bytes already arrived");
+
+				return null;
+			}
+
+			assembly.arrived.set(offset, offset + chunkLength);
+			assembly.received += chunkLength;
+
+			try {
+				assembly.add(data, chunkOffset, offset, chunkLength);
+
+				if (assembly.received < totalLength)
+					return null;
+
+				pending.remove(messageId);
+
+				if (assembly.stream != null)
+					assembly.stream.finish();
+
+			} catch (final RuntimeException ex) {
+				pending.remove(messageId);
+				assembly.close();
+
+				throw ex;
+			}
+
+			complete = assembly.data;
+		}
+
+		if (complete == null) {
+			streamed.increment();
+			Debugger.debug("packet", "Streamed packet of " + totalLength + " bytes from " + serverName);
+
+			return null;
+		}
+
+		reassembled.increment();
+		Debugger.debug("packet", "Reassembled packet of " + totalLength + " bytes from " + serverName);
+
+		return complete;
+	}
+
+	/**
+	 * Forget packets being reassembled from the given server, called when it restarts
+	 *
+	 * @param serverName
+	 */
+	public static void clear(String serverName) {
+		final Map<Integer, Assembly> pending = assemblies.remove(serverName);
+
+		if (pending != null)
+			synchronized (pending) {
+				for (final Assembly assembly : pending.values())
+					assembly.close();
+
+				dropped.add(pending.size());
+			}
+	}
+
+	/*
+	 * Drop packets we waited for too long
+	 */
+	private static void expire(String serverName, Map<Integer, Assembly> pending, long now) {
+		final long timeout = Settings.getSettings().Network.Reassembly_Timeout;
+
+		for (final Iterator<Map.Entry<Integer, Assembly>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+			final Map.Entry<Integer, Assembly> entry = it.next();
+
+			if (now - entry.getValue().started > timeout) {
+				it.remove();
+				entry.getValue().close();
+				dropped.increment();
+
+				Debugger.debug("packet", "Dropped incomplete packet " + entry.getKey() + " from " + serverName + " after " + timeout + "ms");
+			}
+		}
+	}
+
+	/*
+	 * Drop the packet we are waiting for the longest to make room for a new one
+	 */
+	private static void dropOldest(String serverName, Map<Integer, Assembly> pending) {
+		Map.Entry<Integer, Assembly> oldest = null;
+
+		for (final Map.Entry<Integer, Assembly> entry : pending.entrySet())
+			if (oldest == null || entry.getValue().started < oldest.getValue().started)
+				oldest = entry;
+
+		pending.remove(oldest.getKey());
+		oldest.getValue().close();
+		dropped.increment();
+
+		Debugger.debug("packet", "Dropped incomplete packet " + oldest.getKey() + " from " + serverName + ", too many packets in progress");
+	}
+
+	/**
+	 * Return the human readable fragment statistics since startup
+	 *
+	 * @return
+	 */
+	public static String getStatistics() {
+		return "Fragments: " + sent.sum() + " sent, " + received.sum() + " received (" + duplicates.sum() + " duplicates), "
+				+ reassembled.sum() + " packets reassembled, " + streamed.sum() + " streamed, " + dropped.sum() + " dropped incomplete";
+	}
+
+	/**
+	 * Receives the entries of a packet with a merged map as its fragments arrive
+	 */
+	public interface EntryConsumer {
+
+		/**
+		 * Called once when a packet starts streaming in, before any of its entries
+		 *
+		 * @param action
+		 * @return false to skip the packet
+		 */
+		boolean begin(ProxyPacket action);
+
+		/**
+		 * Called for each entry of the map, once all fragments arrived and decoded fine
+		 *
+		 * @param field the string field in front of the map
+		 * @param key
+		 * @param value
+		 */
+		void accept(String field, String key, String value);
+	}
+
+	/*
+	 * A packet being reassembled or streamed
+	 */
+	private static final class Assembly {
+
+		private final int length;
+		private final long started;
+		private final BitSet arrived;
+
+		/**
+		 * The buffer of the total length, null if streamed
+		 */
+		private final byte[] data;
+
+		/**
+		 * The stream decoding the packet and the fragments waiting for the ones in front of them, null if reassembled
+		 */
+		private final FragmentStream stream;
+		private final Map<Integer, byte[]> early;
+
+		private int received;
+		private int streamedLength;
+
+		private Assembly(int length, long started, FragmentStream stream) {
+			this.length = length;
+			this.started = started;
+			this.arrived = new BitSet(length);
+			this.data = stream == null ? new byte[length] : null;
+			this.stream = stream;
+			this.early = stream == null ? null : new HashMap<>();
+		}
+
+		/*
+		 * Copy the fragment to its place, or stream it with the early ones it makes contiguous
+		 */
+		private void add(byte[] data, int chunkOffset, int offset, int chunkLength) {
+			if (this.stream == null) {
+				System.arraycopy(data, chunkOffset, this.data, offset, chunkLength);
+
+				return;
+			}
+
+			if (offset != this.streamedLength) {
+				this.early.put(offset, Arrays.copyOfRange(data, chunkOffset, chunkOffset + chunkLength));
+
+				return;
+			}
+
+			this.stream.feed(data, chunkOffset, chunkLength);
+			this.streamedLength += chunkLength;
+
+			for (byte[] next; (next = this.early.remove(this.streamedLength)) != null; ) {
+				this.stream.feed(next, 0, next.length);
+				this.streamedLength += next.length;
+			}
+		}
+
+		private void close() {
+			if (this.stream != null)
+				this.stream.close();
+		}
+	}
+}
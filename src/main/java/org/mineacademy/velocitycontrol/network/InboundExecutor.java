@@ -0,0 +1,350 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import lombok.RequiredArgsConstructor;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the handling of incoming packets off the Velocity event threads.
+ *
+ * Packets from one server run one at a time in the order they arrived, packets from
+ * different servers run in parallel on {@link Settings.Network#Processing_Threads} threads,
+ * or on virtual threads with {@link Settings.Network#Virtual_Threads} on Java 21 and newer.
+ * The event thread only queues the packet and never waits. When a server has
+ * {@link Settings.Network#Queue_Capacity} packets waiting, the {@link OverflowPolicy} of the
+ * new packet decides what happens: sync data replaces the oldest sync data waiting, packets
+ * that must not get lost are queued past the capacity and others are dropped.
+ *
+ * A task may hold up its lane for a while with {@link #pause(String, long, Runnable)}, e.g. when
+ * the {@link RateLimiter} asks a packet to wait. The lane is then resumed by the scheduler and
+ * no worker thread sits waiting in the meantime.
+ */
+public final class InboundExecutor {
+
+	/**
+	 * The threads handling packets, created from settings on first use
+	 */
+	private static volatile ExecutorService workers;
+
+	/**
+	 * Lanes by the name of the server packets came from
+	 */
+	private static final Map<String, InboundExecutor> lanes = new ConcurrentHashMap<>();
+
+	private final String serverName;
+	private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * If a worker is running this lane, or it is paused
+	 */
+	private boolean running;
+
+	/**
+	 * What runs first once the lane resumes, set by the running task when it pauses the lane,
+	 * only touched from the thread running the lane
+	 */
+	private List<Runnable> deferred;
+	private long pauseNanos;
+
+	/**
+	 * Gauges, guarded by the lock
+	 */
+	private int highWaterMark;
+	private long handled;
+	private long dropped;
+	private long overflowed;
+	private long paused;
+
+	private InboundExecutor(String serverName) {
+		this.serverName = serverName;
+	}
+
+	/**
+	 * Run the task after all earlier tasks from the same server, never waiting for room
+	 *
+	 * @param serverName the server the packet came from
+	 * @param policy what to do with the packet if the lane is full
+	 * @param task
+	 */
+	public static void execute(String serverName, OverflowPolicy policy, Runnable task) {
+		InboundExecutor lane = lanes.get(serverName);
+
+		if (lane == null)
+			lane = lanes.computeIfAbsent(serverName, InboundExecutor::new);
+
+		lane.offer(new Task(task, policy));
+	}
+
+	/**
+	 * Hold up the lane of the given server for the given time, without keeping a thread waiting.
+	 * The continuation runs first once it resumes, followed by the steps of the running task
+	 * given to {@link #deferIfPaused(String, Runnable)}. Only call from a task of that lane.
+	 *
+	 * @param serverName
+	 * @param nanos
+	 * @param continuation
+	 */
+	public static void pause(String serverName, long nanos, Runnable continuation) {
+		final InboundExecutor lane = lanes.get(serverName);
+		Preconditions.checkState(lane != null && lane.deferred == null, "Cannot pause the lane of " + serverName + " from outside of it");
+
+		lane.deferred = new ArrayList<>();
+		lane.deferred.add(continuation);
+		lane.pauseNanos = nanos;
+	}
+
+	/**
+	 * Queue the given step of the running task behind what it paused, if it paused the lane
+	 * of the given server, so packets from one server keep their order
+	 *
+	 * @param serverName
+	 * @param step
+	 * @return true if the step was deferred and must not run now
+	 */
+	public static boolean deferIfPaused(String serverName, Runnable step) {
+		final InboundExecutor lane = lanes.get(serverName);
+
+		if (lane == null || lane.deferred == null)
+			return false;
+
+		lane.deferred.add(step);
+		return true;
+	}
+
+	/*
+	 * Queue the task, applying its policy if the lane is full
+	 */
+	private void offer(Task task) {
+		final int capacity = Math.max(1, Settings.getSettings().Network.Queue_Capacity);
+
+		this.lock.lock();
+
+		try {
+			if (this.tasks.size() >= capacity && !this.makeRoom(task.policy)) {
+				this.dropped++;
+
+				Debugger.debug("packet", "\tDropped a packet from '" + this.serverName + "', its inbound queue is full");
+				return;
+			}
+
+			this.tasks.addLast(task);
+			this.highWaterMark = Math.max(this.highWaterMark, this.tasks.size());
+
+			if (!this.running) {
+				this.running = true;
+
+				getWorkers().execute(this::drain);
+			}
+
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/*
+	 * Free a slot for a task with the given policy, called with the lock held on a full lane.
+	 * Tasks that must not get lost go past the capacity, the worker catches up with them.
+	 */
+	private boolean makeRoom(OverflowPolicy policy) {
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			for (final Iterator<Task> it = this.tasks.iterator(); it.hasNext(); )
+				if (it.next().policy == OverflowPolicy.DROP_OLDEST) {
+					it.remove();
+					this.dropped++;
+
+					return true;
+				}
+
+			return false;
+		}
+
+		if (policy == OverflowPolicy.BLOCK) {
+			this.overflowed++;
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * Run queued tasks until the lane is empty
+	 */
+	private void drain() {
+		while (true) {
+			final Task task;
+
+			this.lock.lock();
+
+			try {
+				task = this.tasks.pollFirst();
+
+				if (task == null) {
+					this.running = false;
+
+					return;
+				}
+
+				this.handled++;
+
+			} finally {
+				this.lock.unlock();
+			}
+
+			try {
+				task.runnable.run();
+
+			} catch (final Throwable t) {
+				VelocityControl.getLogger().error("Could not handle a packet from '" + this.serverName + "'", t);
+			}
+
+			if (this.deferred != null) {
+				this.resumeLater();
+
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Put what the last task deferred in front of the lane and drain it again once the pause is over,
+	 * the lane stays marked as running so that new packets only queue up
+	 */
+	private void resumeLater() {
+		final List<Runnable> deferred = this.deferred;
+		final long delayMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(this.pauseNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+
+		this.deferred = null;
+		this.lock.lock();
+
+		try {
+			// Already accepted, so never dropped to make room
+			for (int index = deferred.size() - 1; index >= 0; index--)
+				this.tasks.addFirst(new Task(deferred.get(index), OverflowPolicy.BLOCK));
+
+			this.paused++;
+
+		} finally {
+			this.lock.unlock();
+		}
+
+		VelocityControl.getServer().getScheduler().buildTask(VelocityControl.getInstance(), () -> getWorkers().execute(this::drain))
+				.delay(delayMillis, TimeUnit.MILLISECONDS).schedule();
+	}
+
+	/*
+	 * Create the workers on first use
+	 */
+	private static ExecutorService getWorkers() {
+		ExecutorService workers = InboundExecutor.workers;
+
+		if (workers == null)
+			synchronized (InboundExecutor.class) {
+				workers = InboundExecutor.workers;
+
+				if (workers == null)
+					InboundExecutor.workers = workers = createWorkers();
+			}
+
+		return workers;
+	}
+
+	/*
+	 * Use virtual threads when asked and the JVM has them, otherwise a fixed pool
+	 */
+	private static ExecutorService createWorkers() {
+		final Settings.Network settings = Settings.getSettings().Network;
+
+		if (settings.Virtual_Threads)
+			try {
+				// Looked up reflectively since we compile against Java 17
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+			} catch (final ReflectiveOperationException ex) {
+				VelocityControl.getLogger().warn("Virtual threads need Java 21 or newer, handling packets on platform threads instead");
+			}
+
+		final int threads = settings.Processing_Threads > 0 ? settings.Processing_Threads : Runtime.getRuntime().availableProcessors();
+
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				final Thread thread = new Thread(task, "VelocityControl Worker #" + this.count.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Wait up to the given time for queued packets to be handled, used when shutting down
+	 *
+	 * @param timeoutMillis
+	 */
+	public static void shutdown(long timeoutMillis) {
+		final ExecutorService workers = InboundExecutor.workers;
+
+		if (workers == null)
+			return;
+
+		workers.shutdown();
+
+		try {
+			workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Return the inbound queue gauges of all servers
+	 *
+	 * @return
+	 */
+	public static List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+
+		for (final InboundExecutor lane : new TreeMap<>(lanes).values()) {
+			lane.lock.lock();
+
+			try {
+				lines.add(" Inbound '" + lane.serverName + "': " + lane.tasks.size() + " waiting, " + lane.highWaterMark + " at most, " + lane.handled + " handled, " + lane.dropped + " dropped, " + lane.overflowed + " over capacity, " + lane.paused + " pauses");
+
+			} finally {
+				lane.lock.unlock();
+			}
+		}
+
+		return lines;
+	}
+
+	/*
+	 * A queued packet and what to do with it when the lane is full
+	 */
+	@RequiredArgsConstructor
+	private static final class Task {
+		private final Runnable runnable;
+		private final OverflowPolicy policy;
+	}
+}
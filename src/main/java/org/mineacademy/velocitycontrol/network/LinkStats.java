@@ -0,0 +1,260 @@
+package org.mineacademy.velocitycontrol.network;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Numbers plugin messages on each link between the proxy and a server with
+ * {@link Protocol#FEATURE_SEQUENCING}, so that lost, reordered and slow messages show up.
+ *
+ * A sequenced message is a compact envelope, see {@link Protocol#ENVELOPE}, of type {@link Protocol#SEQUENCED}:
+ *
+ * 1) The sequence number as a varint, counting up from 0 on each link and direction
+ * 2) The time the message was sent as a long of epoch milliseconds
+ * 3) The message itself, which may be a packet or another envelope
+ *
+ * For messages from servers we record the sequence gaps, late arrivals and the one-way
+ * delay, which assumes clocks are kept in sync, e.g. by NTP.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class LinkStats {
+
+	/**
+	 * The bytes a sequenced envelope adds in front of the message, at most
+	 */
+	private static final int ENVELOPE_OVERHEAD = 2 + 5 + 8;
+
+	/**
+	 * Links by server name
+	 */
+	private static final Map<String, Link> links = new ConcurrentHashMap<>();
+
+	/**
+	 * Return true if messages to and from the given server are sequenced
+	 *
+	 * @param serverName
+	 * @return
+	 */
+	public static boolean isEnabled(String serverName) {
+		return (Protocol.getFeatures(serverName) & Protocol.FEATURE_SEQUENCING) != 0;
+	}
+
+	/**
+	 * Wrap the message in a sequenced envelope with the next sequence number of the given server,
+	 * the caller must send envelopes of one server in the order they were wrapped
+	 *
+	 * @param serverName
+	 * @param data
+	 * @return
+	 */
+	public static byte[] wrap(String serverName, byte[] data) {
+		final Link link = getLink(serverName);
+		final PacketWriter out = PacketWriter.borrow(ENVELOPE_OVERHEAD + data.length);
+
+		try {
+			out.writeByte(Protocol.MAGIC | Protocol.ENVELOPE | Protocol.COMPACT);
+			out.writeByte(Protocol.SEQUENCED);
+			out.writeVarInt(link.nextSequence++);
+			out.writeLong(System.currentTimeMillis());
+			out.write(data);
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Record the sequence number and delay of a sequenced envelope from the given server
+	 * and return the message inside it
+	 *
+	 * @param serverName
+	 * @param envelope
+	 * @return
+	 * @throws IllegalArgumentException if the envelope is malformed
+	 */
+	public static byte[] accept(String serverName, byte[] envelope) {
+		final int sequence = PacketReader.readVarInt(envelope, 2);
+		final int position = PacketReader.skipVarInt(envelope, 2);
+		final long sentAt = PacketReader.readLong(envelope, position);
+
+		getLink(serverName).record(sequence, System.currentTimeMillis() - sentAt);
+
+		return Arrays.copyOfRange(envelope, position + 8, envelope.length);
+	}
+
+	/**
+	 * Return the lock to hold while wrapping and sending to the given server,
+	 * so that sequence numbers leave in order
+	 *
+	 * @param serverName
+	 * @return
+	 */
+	public static Object getSendLock(String serverName) {
+		return getLink(serverName);
+	}
+
+	/**
+	 * Start counting the given link from 0 again, called when the server negotiates
+	 * the protocol which it does on every start
+	 *
+	 * @param serverName
+	 */
+	public static void clear(String serverName) {
+		links.remove(serverName);
+	}
+
+	private static Link getLink(String serverName) {
+		final Link link = links.get(serverName);
+
+		return link != null ? link : links.computeIfAbsent(serverName, name -> new Link());
+	}
+
+	/**
+	 * Return the human readable statistics of each link
+	 *
+	 * @return
+	 */
+	public static List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+
+		new TreeMap<>(links).forEach((serverName, link) -> {
+			synchronized (link) {
+				lines.add(" Link '" + serverName + "': " + link.nextSequence + " sent, " + link.received + " received, " + link.missing + " missing, " + link.late + " late"
+						+ ", gaps " + link.gaps + ", delay ms " + link.delays);
+			}
+		});
+
+		return lines;
+	}
+
+	/*
+	 * Both directions of one link, guarded by its own monitor
+	 */
+	private static final class Link {
+
+		/**
+		 * The sequence number of the next message we send
+		 */
+		private int nextSequence;
+
+		/**
+		 * The sequence number we expect to receive next
+		 */
+		private int expected;
+
+		private long received;
+
+		/**
+		 * Messages skipped by a gap that have not arrived late since
+		 */
+		private long missing;
+
+		/**
+		 * Messages that arrived after a later one
+		 */
+		private long late;
+
+		private final Histogram gaps = new Histogram();
+		private final Histogram delays = new Histogram();
+
+		private synchronized void record(int sequence, long delay) {
+			// Compared by difference so that wrapping around is fine
+			final int distance = sequence - this.expected;
+
+			if (distance >= 0) {
+				if (distance > 0) {
+					this.gaps.record(distance);
+					this.missing += distance;
+				}
+
+				this.expected = sequence + 1;
+
+			} else {
+				this.late++;
+
+				if (this.missing > 0)
+					this.missing--;
+			}
+
+			this.received++;
+			this.delays.record(Math.max(0, delay));
+		}
+	}
+
+	/**
+	 * Counts values in power of two buckets: 0, 1, 2-3, 4-7 and so on
+	 */
+	static final class Histogram {
+
+		private static final int BUCKETS = 16;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		/**
+		 * Count the given value, values from 2^14 up share the last bucket
+		 *
+		 * @param value
+		 */
+		void record(long value) {
+			this.counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+		}
+
+		/**
+		 * Return the upper bound of the bucket holding the given fraction of values, e.g. 0.99
+		 *
+		 * @param fraction
+		 * @return
+		 */
+		long getPercentile(double fraction) {
+			long total = 0;
+
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				total += this.counts.get(bucket);
+
+			long seen = 0;
+
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += this.counts.get(bucket);
+
+				if (total > 0 && seen >= total * fraction)
+					return (1L << bucket) - 1;
+			}
+
+			return 0;
+		}
+
+		/**
+		 * Return the non-empty buckets and the median and 99th percentile
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder line = new StringBuilder("[");
+
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				final long count = this.counts.get(bucket);
+
+				if (count == 0)
+					continue;
+
+				if (line.length() > 1)
+					line.append(", ");
+
+				final long from = bucket == 0 ? 0 : 1L << (bucket - 1);
+
+				line.append(bucket == BUCKETS - 1 ? from + "+" : bucket < 2 ? String.valueOf(from) : from + "-" + ((1L << bucket) - 1)).append(": ").append(count);
+			}
+
+			return line.append("] p50 ").append(this.getPercentile(0.5)).append(" p99 ").append(this.getPercentile(0.99)).toString();
+		}
+	}
+}
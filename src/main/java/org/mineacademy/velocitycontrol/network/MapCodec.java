@@ -0,0 +1,314 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads and writes the name-keyed maps of our sync packets in their binary form,
+ * used for servers with {@link Protocol#FEATURE_BINARY_MAPS}:
+ *
+ * 1) The byte length of the rest of the map as an int
+ * 2) The value type, {@link #UUID_VALUES} or {@link #STRING_VALUES}
+ * 3) The amount of entries as a varint
+ * 4) Each entry as the UTF key followed by the UUID as two longs, or the UTF value
+ *
+ * Readers accept both value types wherever string values are expected.
+ * Other servers get the maps as a json object written as a single UTF string.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class MapCodec {
+
+	/**
+	 * Values are raw 128-bit unique ids
+	 */
+	public static final int UUID_VALUES = 0;
+
+	/**
+	 * Values are UTF strings
+	 */
+	public static final int STRING_VALUES = 1;
+
+	/**
+	 * Used to write maps for servers without binary maps
+	 */
+	private static final Gson gson = new Gson();
+
+	/**
+	 * Write a name to unique id map
+	 *
+	 * @param out
+	 * @param map
+	 */
+	public static void writeUUIDs(PacketWriter out, Map<String, UUID> map) {
+		final int start = begin(out, UUID_VALUES, map.size());
+
+		map.forEach((key, value) -> {
+			out.writeUTF(key);
+			out.writeLong(value.getMostSignificantBits());
+			out.writeLong(value.getLeastSignificantBits());
+		});
+
+		end(out, start);
+	}
+
+	/**
+	 * Write a name to string map, such as player names and their data lines
+	 *
+	 * @param out
+	 * @param map
+	 */
+	public static void writeStrings(PacketWriter out, Map<String, String> map) {
+		final int start = begin(out, STRING_VALUES, map.size());
+
+		map.forEach((key, value) -> {
+			out.writeUTF(key);
+			out.writeUTF(value);
+		});
+
+		end(out, start);
+	}
+
+	/*
+	 * Reserve the length and write the map header, returning where the length goes
+	 */
+	private static int begin(PacketWriter out, int valueType, int size) {
+		final int start = out.size();
+
+		out.writeInt(0);
+		out.writeByte(valueType);
+		out.writeVarInt(size);
+
+		return start;
+	}
+
+	/*
+	 * Fill in the reserved length
+	 */
+	private static void end(PacketWriter out, int start) {
+		out.setInt(start, out.size() - start - 4);
+	}
+
+	/**
+	 * Walk the binary map at the given offset and fail if its entries do not
+	 * add up to its length
+	 *
+	 * @param data
+	 * @param offset
+	 * @return the offset right after the map
+	 */
+	public static int scan(byte[] data, int offset) {
+		final int length = PacketReader.readInt(data, offset);
+		final int end = offset + 4 + length;
+
+		Preconditions.checkArgument(length >= 0 && end <= data.length, "map of " + length + " bytes overflows the packet");
+
+		final int valueType = PacketReader.readByte(data, offset + 4);
+		Preconditions.checkArgument(valueType == STRING_VALUES || valueType == UUID_VALUES, "unknown map value type " + valueType);
+
+		final int size = PacketReader.readVarInt(data, offset + 5);
+		int position = PacketReader.skipVarInt(data, offset + 5);
+
+		for (int entry = 0; entry < size && position <= end; entry++) {
+			position = PacketReader.skipUTF(data, position);
+			position = valueType == UUID_VALUES ? position + 16 : PacketReader.skipUTF(data, position);
+		}
+
+		Preconditions.checkArgument(position == end, "map entries take " + (position - offset - 4) + " out of " + length + " bytes");
+		return end;
+	}
+
+	/**
+	 * Stream the entries of the binary map at the given offset into the consumer,
+	 * unique id values are given as strings. The map must have passed {@link #scan(byte[], int)}.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param consumer
+	 * @return the offset right after the map
+	 */
+	public static int readStrings(byte[] data, int offset, BiConsumer<String, String> consumer) {
+		final int end = offset + 4 + PacketReader.readInt(data, offset);
+		final int valueType = data[offset + 4];
+		final int size = PacketReader.readVarInt(data, offset + 5);
+		int position = PacketReader.skipVarInt(data, offset + 5);
+
+		for (int entry = 0; entry < size; entry++) {
+			final String key = PacketReader.readUTF(data, position);
+			position = PacketReader.skipUTF(data, position);
+
+			final String value;
+
+			if (valueType == UUID_VALUES) {
+				value = new UUID(PacketReader.readLong(data, position), PacketReader.readLong(data, position + 8)).toString();
+				position += 16;
+
+			} else {
+				value = PacketReader.readUTF(data, position);
+				position = PacketReader.skipUTF(data, position);
+			}
+
+			consumer.accept(key, value);
+		}
+
+		return end;
+	}
+
+	/**
+	 * Return the given map as a json object, the form servers without binary maps read
+	 *
+	 * @param map
+	 * @return
+	 */
+	public static String toJson(Map<String, ?> map) {
+		return gson.toJson(map);
+	}
+
+	/**
+	 * Return the given map as json objects of at most the given length in modified UTF-8 each,
+	 * splitting its entries in halves until they fit. A single entry longer than that is kept whole.
+	 *
+	 * @param map
+	 * @param maxLength
+	 * @return
+	 */
+	public static List<String> toJsonParts(Map<String, ?> map, int maxLength) {
+		final List<String> parts = new ArrayList<>();
+
+		splitJson(new ArrayList<>(map.entrySet()), maxLength, parts);
+		return parts;
+	}
+
+	/*
+	 * Add the json of the given entries, or of each half of them if too long
+	 */
+	private static void splitJson(List<? extends Map.Entry<String, ?>> entries, int maxLength, List<String> parts) {
+		final Map<String, Object> map = new LinkedHashMap<>();
+
+		for (final Map.Entry<String, ?> entry : entries)
+			map.put(entry.getKey(), entry.getValue());
+
+		final String json = gson.toJson(map);
+
+		if (entries.size() < 2 || PacketWriter.getUTFLength(json) <= maxLength) {
+			parts.add(json);
+
+			return;
+		}
+
+		final int half = entries.size() / 2;
+
+		splitJson(entries.subList(0, half), maxLength, parts);
+		splitJson(entries.subList(half, entries.size()), maxLength, parts);
+	}
+
+	/**
+	 * Rewrite the body of the given packet with its maps converted to or from the binary form,
+	 * used to relay packets between servers that negotiated different map forms
+	 *
+	 * @param action
+	 * @param data
+	 * @param offset the offset of the body
+	 * @param toBinary
+	 * @return the new body
+	 */
+	public static byte[] convertBody(ProxyPacket action, byte[] data, int offset, boolean toBinary) {
+		final PacketCodec codec = PacketCodec.of(action);
+		final PacketWriter out = PacketWriter.borrow(data.length - offset);
+
+		codec.scan(data, offset, !toBinary);
+
+		try {
+			int position = offset;
+
+			for (int index = 0; index < codec.getFieldCount(); index++) {
+				final PacketCodec.FieldType type = codec.getField(index);
+
+				if (type != PacketCodec.FieldType.MAP) {
+					final int next = type.skip(data, position, !toBinary);
+
+					out.write(data, position, next - position);
+					position = next;
+
+					continue;
+				}
+
+				final Map<String, String> map = new LinkedHashMap<>();
+
+				if (toBinary) {
+					position = readJsonStrings(data, position, map::put);
+					writeStrings(out, map);
+
+				} else {
+					position = readStrings(data, position, map::put);
+
+					out.writeUTF(toJson(map));
+				}
+			}
+
+			// Keep anything a newer server appended
+			out.write(data, position, data.length - position);
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Stream the entries of the json object written as the UTF string at the given offset into
+	 * the consumer, skipping null values. Read as leniently as Gson reads maps, numbers and
+	 * booleans are passed on as their text, nested objects and arrays as their json.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param consumer
+	 * @return the offset right after the string
+	 */
+	public static int readJsonStrings(byte[] data, int offset, BiConsumer<String, String> consumer) {
+		try (JsonReader reader = new JsonReader(new StringReader(PacketReader.readUTF(data, offset)))) {
+			reader.setLenient(true);
+			reader.beginObject();
+
+			while (reader.hasNext()) {
+				final String key = reader.nextName();
+				final JsonToken token = reader.peek();
+
+				if (token == JsonToken.NULL)
+					reader.nextNull();
+
+				else if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY)
+					consumer.accept(key, gson.getAdapter(JsonElement.class).read(reader).toString());
+
+				else if (token == JsonToken.BOOLEAN)
+					consumer.accept(key, String.valueOf(reader.nextBoolean()));
+
+				else
+					consumer.accept(key, reader.nextString());
+			}
+
+			reader.endObject();
+
+		} catch (final IOException | IllegalStateException | JsonParseException ex) {
+			throw new IllegalArgumentException("Malformed json map: " + ex.getMessage(), ex);
+		}
+
+		return PacketReader.skipUTF(data, offset);
+	}
+}
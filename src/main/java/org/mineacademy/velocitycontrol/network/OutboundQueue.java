@@ -0,0 +1,303 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of packets waiting to be sent to one server, so that a slow
+ * server connection never holds up the thread relaying a packet or other servers.
+ *
+ * Each queue is drained by one sender task at a time, in the order packets were
+ * queued, on a shared pool of sender threads. When a queue holds
+ * {@link Settings.Network#Queue_Capacity} packets, the {@link OverflowPolicy} of the
+ * new packet decides what happens.
+ */
+public final class OutboundQueue {
+
+	/**
+	 * The threads draining queues, a thread only stays busy while its server is slow
+	 */
+	private static final ExecutorService senders = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable task) {
+			final Thread thread = new Thread(task, "VelocityControl Sender #" + this.count.incrementAndGet());
+
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Queues by server name
+	 */
+	private static final Map<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+
+	private final RegisteredServer server;
+	private final ArrayDeque<Payload> packets = new ArrayDeque<>();
+
+	/**
+	 * Handshakes sent before any of the packets, in the order they were queued
+	 * so that the latest one is read last
+	 */
+	private final ArrayDeque<Payload> handshakes = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = this.lock.newCondition();
+
+	/**
+	 * If a sender task is draining this queue
+	 */
+	private boolean draining;
+
+	/**
+	 * Gauges, guarded by the lock
+	 */
+	private int highWaterMark;
+	private long sent;
+	private long dropped;
+
+	private OutboundQueue(RegisteredServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Return the queue of the given server
+	 *
+	 * @param server
+	 * @return
+	 */
+	public static OutboundQueue of(RegisteredServer server) {
+		final OutboundQueue queue = queues.get(server.getServerInfo().getName());
+
+		return queue != null ? queue : queues.computeIfAbsent(server.getServerInfo().getName(), name -> new OutboundQueue(server));
+	}
+
+	/**
+	 * Queue the payload to be sent, applying its {@link OverflowPolicy} if the queue is full
+	 *
+	 * @param payload
+	 * @return false if the payload was dropped
+	 */
+	public boolean offer(Payload payload) {
+		final int capacity = Math.max(1, Settings.getSettings().Network.Queue_Capacity);
+		final OverflowPolicy policy = OverflowPolicy.of(payload.getAction());
+
+		this.lock.lock();
+
+		try {
+			// The server must read the handshake before anything encoded for what it agreed on, it is never dropped
+			if (payload.isHandshake())
+				this.handshakes.addLast(payload);
+
+			else if (this.packets.size() < capacity || this.makeRoom(policy, capacity))
+				this.packets.addLast(payload);
+
+			else {
+				this.dropped++;
+
+				Debugger.debug("packet", "\tDropped " + payload.getAction() + " for '" + this.getServerName() + "', its queue is full");
+				return false;
+			}
+
+			this.highWaterMark = Math.max(this.highWaterMark, this.getSize());
+
+			if (!this.draining) {
+				this.draining = true;
+
+				senders.execute(this::drain);
+			}
+
+			return true;
+
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/*
+	 * Free a slot for a packet with the given policy, called with the lock held on a full queue
+	 */
+	private boolean makeRoom(OverflowPolicy policy, int capacity) {
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			for (final Iterator<Payload> it = this.packets.iterator(); it.hasNext(); )
+				if (OverflowPolicy.of(it.next().getAction()) == OverflowPolicy.DROP_OLDEST) {
+					it.remove();
+					this.dropped++;
+
+					return true;
+				}
+
+			return false;
+		}
+
+		if (policy == OverflowPolicy.BLOCK) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(Settings.getSettings().Network.Queue_Block_Timeout);
+
+			try {
+				while (this.packets.size() >= capacity && nanos > 0)
+					nanos = this.notFull.awaitNanos(nanos);
+
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			return this.packets.size() < capacity;
+		}
+
+		return false;
+	}
+
+	/*
+	 * Send queued packets until the queue is empty
+	 */
+	private void drain() {
+		while (true) {
+			final Payload payload;
+
+			this.lock.lock();
+
+			try {
+				payload = this.handshakes.isEmpty() ? this.packets.pollFirst() : this.handshakes.pollFirst();
+
+				if (payload == null) {
+					this.draining = false;
+
+					return;
+				}
+
+				this.notFull.signal();
+
+			} finally {
+				this.lock.unlock();
+			}
+
+			try {
+				Relay.transmit(this.server, payload);
+
+			} catch (final Throwable t) {
+				VelocityControl.getLogger().error("Could not send " + payload.getAction() + " to '" + this.getServerName() + "': " + t);
+			}
+
+			this.lock.lock();
+
+			try {
+				this.sent++;
+
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Send the handshakes queued ahead of the payload being sent, called by the
+	 * drain once the payload is encoded since encoding it may have queued them
+	 */
+	void transmitHandshakes() {
+		while (true) {
+			final Payload handshake;
+
+			this.lock.lock();
+
+			try {
+				handshake = this.handshakes.pollFirst();
+
+				if (handshake == null)
+					return;
+
+				this.sent++;
+
+			} finally {
+				this.lock.unlock();
+			}
+
+			Relay.transmit(this.server, handshake);
+		}
+	}
+
+	private String getServerName() {
+		return this.server.getServerInfo().getName();
+	}
+
+	/**
+	 * Wait up to the given time for all queues to be sent, used when shutting down
+	 *
+	 * @param timeoutMillis
+	 */
+	public static void shutdown(long timeoutMillis) {
+		senders.shutdown();
+
+		try {
+			senders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Return the queue depth gauges of all servers, the deepest first
+	 *
+	 * @return
+	 */
+	public static List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+
+		// Sorted by name first so that servers with the same depth keep a stable order
+		new TreeMap<>(queues).values().stream()
+				.sorted((first, second) -> Integer.compare(second.getDepth(), first.getDepth()))
+				.forEach(queue -> {
+					queue.lock.lock();
+
+					try {
+						lines.add(" Queue '" + queue.getServerName() + "': " + queue.getSize() + " waiting, " + queue.highWaterMark + " at most, " + queue.sent + " sent, " + queue.dropped + " dropped");
+
+					} finally {
+						queue.lock.unlock();
+					}
+				});
+
+		return lines;
+	}
+
+	/**
+	 * Return how many packets are waiting to be sent
+	 *
+	 * @return
+	 */
+	public int getDepth() {
+		this.lock.lock();
+
+		try {
+			return this.getSize();
+
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/*
+	 * Return how many packets are waiting, called with the lock held
+	 */
+	private int getSize() {
+		return this.handshakes.size() + this.packets.size();
+	}
+}
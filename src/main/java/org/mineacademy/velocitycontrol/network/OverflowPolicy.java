@@ -0,0 +1,59 @@
+package org.mineacademy.velocitycontrol.network;
+
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * What an {@link OutboundQueue} does with a packet when it is full
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Make room by dropping the oldest queued packet with this policy, used for sync data
+	 * that is resent in full periodically anyway
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Wait for room up to {@link org.mineacademy.velocitycontrol.settings.Settings.Network#Queue_Block_Timeout}
+	 * milliseconds, used for commands and other packets that must not get lost
+	 */
+	BLOCK,
+
+	/**
+	 * Drop the new packet
+	 */
+	FAIL;
+
+	/**
+	 * Packets that are periodically resent in full, or repaired after the next checksum
+	 */
+	private static final Set<ProxyPacket> SYNC_PACKETS = EnumSet.of(
+			ProxyPacket.PLAYERS_CLUSTER_HEADER,
+			ProxyPacket.PLAYERS_CLUSTER_DATA,
+			ProxyPacket.PLAYERS_JOINED,
+			ProxyPacket.PLAYERS_LEFT,
+			ProxyPacket.PLAYERS_CHECKSUM,
+			ProxyPacket.DATA_TREE);
+
+	/**
+	 * Packets that make servers run something, or that are sent only once and must not get lost
+	 */
+	private static final Set<ProxyPacket> COMMAND_PACKETS = EnumSet.of(
+			ProxyPacket.FORWARD_COMMAND,
+			ProxyPacket.DB_UPDATE,
+			ProxyPacket.MAIL_SYNC,
+			ProxyPacket.SERVER_ALIAS);
+
+	/**
+	 * Return the policy for the given packet
+	 *
+	 * @param action
+	 * @return
+	 */
+	public static OverflowPolicy of(ProxyPacket action) {
+		return SYNC_PACKETS.contains(action) ? DROP_OLDEST : COMMAND_PACKETS.contains(action) ? BLOCK : FAIL;
+	}
+}
@@ -0,0 +1,233 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+import java.util.HashMap;
+
+/**
+ * The body layout of one {@link ProxyPacket}, built once from its {@link ProxyPacket#getContent()}.
+ *
+ * A received body is validated as a whole by {@link #scan(byte[], int, boolean)} before
+ * any handler reads it, so that reading and writing the fields afterwards only has to
+ * follow the field index instead of checking each field.
+ */
+public final class PacketCodec {
+
+	/**
+	 * The codecs by {@link ProxyPacket#getId()}
+	 */
+	private static final PacketCodec[] BY_ID;
+
+	static {
+		final ProxyPacket[] actions = ProxyPacket.values();
+
+		BY_ID = new PacketCodec[actions.length];
+
+		for (final ProxyPacket action : actions)
+			BY_ID[action.getId()] = new PacketCodec(action);
+	}
+
+	/**
+	 * The packet this codec is for
+	 */
+	@Getter
+	private final ProxyPacket action;
+
+	/**
+	 * The field types in the order they are written
+	 */
+	private final FieldType[] fields;
+
+	/**
+	 * The expected body size to size buffers with
+	 */
+	@Getter
+	private final int sizeEstimate;
+
+	private PacketCodec(ProxyPacket action) {
+		final Class<?>[] content = action.getContent();
+		int sizeEstimate = 0;
+
+		this.action = action;
+		this.fields = new FieldType[content.length];
+
+		for (int index = 0; index < content.length; index++) {
+			this.fields[index] = FieldType.of(action, content[index]);
+			sizeEstimate += this.fields[index].getSizeEstimate();
+		}
+
+		this.sizeEstimate = sizeEstimate;
+	}
+
+	/**
+	 * Return the codec of the given packet
+	 *
+	 * @param action
+	 * @return
+	 */
+	public static PacketCodec of(ProxyPacket action) {
+		return BY_ID[action.getId()];
+	}
+
+	/**
+	 * Return how many fields the body has
+	 *
+	 * @return
+	 */
+	public int getFieldCount() {
+		return this.fields.length;
+	}
+
+	/**
+	 * Return the type of the field at the given index
+	 *
+	 * @param index
+	 * @return
+	 */
+	public FieldType getField(int index) {
+		return this.fields[index];
+	}
+
+	/**
+	 * Return true if the field at the given index exists and has the given type,
+	 * used by messages to assert they are read and written in the schema order
+	 *
+	 * @param index
+	 * @param type
+	 * @return
+	 */
+	public boolean matches(int index, FieldType type) {
+		return index < this.fields.length && this.fields[index] == type;
+	}
+
+	/**
+	 * Walk all fields of the body at the given offset in one pass and fail if any of them
+	 * does not fit in the data. Bytes after the last field are allowed so that newer
+	 * servers can append fields.
+	 *
+	 * @param data
+	 * @param offset the offset of the body
+	 * @param binaryMaps if maps are in the {@link MapCodec} form instead of json
+	 * @return the offset right after the last field
+	 * @throws IllegalArgumentException if the body does not match the schema
+	 */
+	public int scan(byte[] data, int offset, boolean binaryMaps) {
+		return this.scan(data, offset, binaryMaps, this.fields.length);
+	}
+
+	/**
+	 * Walk the given amount of leading fields of the body at the given offset and fail
+	 * if any of them does not fit in the data, used when only these fields are read
+	 *
+	 * @param data
+	 * @param offset the offset of the body
+	 * @param binaryMaps if maps are in the {@link MapCodec} form instead of json
+	 * @param fieldCount how many fields to walk, at most {@link #getFieldCount()}
+	 * @return the offset right after the last walked field
+	 * @throws IllegalArgumentException if the fields do not match the schema
+	 */
+	public int scan(byte[] data, int offset, boolean binaryMaps, int fieldCount) {
+		int position = offset;
+
+		for (int index = 0; index < Math.min(fieldCount, this.fields.length); index++)
+			try {
+				position = this.fields[index].skip(data, position, binaryMaps);
+
+			} catch (final IllegalArgumentException ex) {
+				throw new IllegalArgumentException("Malformed " + this.action + " body, field #" + (index + 1) + " (" + this.fields[index] + ") at offset " + position + ": " + ex.getMessage(), ex);
+			}
+
+		return position;
+	}
+
+	/**
+	 * The wire types fields can have
+	 */
+	@RequiredArgsConstructor
+	public enum FieldType {
+
+		/**
+		 * A UTF string
+		 */
+		STRING(64),
+
+		/**
+		 * A unique id written as its string form
+		 */
+		UUID(38),
+
+		/**
+		 * One byte
+		 */
+		BOOLEAN(1),
+
+		/**
+		 * Four bytes
+		 */
+		INTEGER(4),
+
+		/**
+		 * Eight bytes
+		 */
+		LONG(8),
+
+		/**
+		 * A json UTF string, or the {@link MapCodec} form
+		 */
+		MAP(4096);
+
+		/**
+		 * The typical size of the field
+		 */
+		@Getter
+		private final int sizeEstimate;
+
+		/*
+		 * Return the offset right after this field at the given offset
+		 */
+		int skip(byte[] data, int offset, boolean binaryMaps) {
+			switch (this) {
+				case BOOLEAN:
+				case INTEGER:
+				case LONG:
+					Preconditions.checkArgument(offset + this.sizeEstimate <= data.length, "unexpected end of data");
+
+					return offset + this.sizeEstimate;
+
+				case MAP:
+					return binaryMaps ? MapCodec.scan(data, offset) : PacketReader.skipUTF(data, offset);
+
+				default:
+					return PacketReader.skipUTF(data, offset);
+			}
+		}
+
+		/*
+		 * Map the declared content class to its wire type, failing on startup for unknown ones
+		 */
+		private static FieldType of(ProxyPacket action, Class<?> type) {
+			if (type == String.class)
+				return STRING;
+
+			if (type == java.util.UUID.class)
+				return UUID;
+
+			if (type == Boolean.class)
+				return BOOLEAN;
+
+			if (type == Integer.class)
+				return INTEGER;
+
+			if (type == Long.class)
+				return LONG;
+
+			if (type == HashMap.class)
+				return MAP;
+
+			throw new IllegalStateException("Unsupported content type " + type.getSimpleName() + " in " + action);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Reads the format written by {@link PacketWriter} at given offsets of a byte array,
+ * without copying it. All methods fail with an {@link IllegalArgumentException}
+ * when the data is too short.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class PacketReader {
+
+	public static int readByte(byte[] data, int offset) {
+		checkBounds(data, offset, 1);
+
+		return data[offset] & 0xFF;
+	}
+
+	public static boolean readBoolean(byte[] data, int offset) {
+		return readByte(data, offset) != 0;
+	}
+
+	public static int readUnsignedShort(byte[] data, int offset) {
+		checkBounds(data, offset, 2);
+
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	public static int readInt(byte[] data, int offset) {
+		checkBounds(data, offset, 4);
+
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	public static long readLong(byte[] data, int offset) {
+		return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Read an unsigned varint at the given offset
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public static int readVarInt(byte[] data, int offset) {
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7) {
+			Preconditions.checkArgument(offset < data.length, "Malformed packet, varint overflows " + data.length + " bytes");
+
+			final byte current = data[offset++];
+			value |= (current & 0x7F) << shift;
+
+			if ((current & 0x80) == 0)
+				return value;
+		}
+
+		throw new IllegalArgumentException("Malformed packet, varint too long");
+	}
+
+	/**
+	 * Return the offset right after the varint at the given offset
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public static int skipVarInt(byte[] data, int offset) {
+		return offset + PacketWriter.getVarIntSize(readVarInt(data, offset));
+	}
+
+	/**
+	 * Return the offset right after the length-prefixed string at the given offset
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public static int skipUTF(byte[] data, int offset) {
+		final int end = offset + 2 + readUnsignedShort(data, offset);
+		Preconditions.checkArgument(end <= data.length, "Malformed packet, string at " + offset + " overflows " + data.length + " bytes");
+
+		return end;
+	}
+
+	/**
+	 * Decode the modified UTF-8 string at the given offset, as written by DataOutput#writeUTF
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	public static String readUTF(byte[] data, int offset) {
+		final int end = skipUTF(data, offset);
+		final char[] chars = new char[end - offset - 2];
+		int count = 0;
+
+		for (int index = offset + 2; index < end; ) {
+			final int first = data[index] & 0xFF;
+
+			if (first < 0x80) {
+				chars[count++] = (char) first;
+				index++;
+
+			} else if ((first & 0xE0) == 0xC0) {
+				Preconditions.checkArgument(index + 2 <= end, "Malformed UTF string at " + offset);
+
+				chars[count++] = (char) (((first & 0x1F) << 6) | (data[index + 1] & 0x3F));
+				index += 2;
+
+			} else if ((first & 0xF0) == 0xE0) {
+				Preconditions.checkArgument(index + 3 <= end, "Malformed UTF string at " + offset);
+
+				chars[count++] = (char) (((first & 0x0F) << 12) | ((data[index + 1] & 0x3F) << 6) | (data[index + 2] & 0x3F));
+				index += 3;
+
+			} else
+				throw new IllegalArgumentException("Malformed UTF string at " + offset);
+		}
+
+		return new String(chars, 0, count);
+	}
+
+	private static void checkBounds(byte[] data, int offset, int length) {
+		Preconditions.checkArgument(offset >= 0 && offset + length <= data.length, "Malformed packet, unexpected end of data at " + offset);
+	}
+}
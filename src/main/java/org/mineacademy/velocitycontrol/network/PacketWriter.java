@@ -0,0 +1,234 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer writing the same format as {@link java.io.DataOutput},
+ * with a small per-thread pool so that building packets does not allocate
+ * a new buffer every time.
+ */
+public final class PacketWriter {
+
+	/**
+	 * How many idle writers each thread keeps
+	 */
+	private static final int POOL_SIZE = 4;
+
+	/**
+	 * Writers grown past this size are not returned to the pool to avoid hoarding memory
+	 */
+	private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+	/**
+	 * The idle writers of the current thread
+	 */
+	private static final ThreadLocal<ArrayDeque<PacketWriter>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private byte[] buffer;
+
+	private int length;
+
+	/**
+	 * Create a new writer outside of the pool
+	 *
+	 * @param capacity
+	 */
+	public PacketWriter(int capacity) {
+		this.buffer = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Take an empty writer from the pool of the current thread with at least
+	 * the given capacity, call {@link #release()} when done
+	 *
+	 * @param capacity
+	 * @return
+	 */
+	public static PacketWriter borrow(int capacity) {
+		final PacketWriter writer = POOL.get().pollFirst();
+
+		if (writer == null)
+			return new PacketWriter(capacity);
+
+		writer.ensureCapacity(capacity);
+		return writer;
+	}
+
+	/**
+	 * Return this writer to the pool of the current thread, it must not be used afterwards
+	 */
+	public void release() {
+		final ArrayDeque<PacketWriter> pool = POOL.get();
+
+		this.length = 0;
+
+		if (pool.size() < POOL_SIZE && this.buffer.length <= MAX_POOLED_CAPACITY)
+			pool.addFirst(this);
+	}
+
+	public void writeByte(int value) {
+		this.ensureCapacity(this.length + 1);
+		this.buffer[this.length++] = (byte) value;
+	}
+
+	public void writeBoolean(boolean value) {
+		this.writeByte(value ? 1 : 0);
+	}
+
+	public void writeShort(int value) {
+		this.ensureCapacity(this.length + 2);
+		this.buffer[this.length++] = (byte) (value >>> 8);
+		this.buffer[this.length++] = (byte) value;
+	}
+
+	public void writeInt(int value) {
+		this.ensureCapacity(this.length + 4);
+		this.buffer[this.length++] = (byte) (value >>> 24);
+		this.buffer[this.length++] = (byte) (value >>> 16);
+		this.buffer[this.length++] = (byte) (value >>> 8);
+		this.buffer[this.length++] = (byte) value;
+	}
+
+	public void writeLong(long value) {
+		this.writeInt((int) (value >>> 32));
+		this.writeInt((int) value);
+	}
+
+	/**
+	 * Write an unsigned varint, 7 bits per byte with the high bit set on all but the last byte
+	 *
+	 * @param value
+	 */
+	public void writeVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			this.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		this.writeByte(value);
+	}
+
+	/**
+	 * Return how many bytes the given varint takes
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int getVarIntSize(int value) {
+		int size = 1;
+
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Return how many bytes the given string takes in modified UTF-8, without its length prefix
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int getUTFLength(String value) {
+		int length = 0;
+
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+
+			length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Overwrite the int at the given position, used to fill in lengths reserved earlier
+	 *
+	 * @param position
+	 * @param value
+	 */
+	public void setInt(int position, int value) {
+		Preconditions.checkArgument(position >= 0 && position + 4 <= this.length, "Cannot set int at " + position + " of " + this.length + " bytes");
+
+		this.buffer[position] = (byte) (value >>> 24);
+		this.buffer[position + 1] = (byte) (value >>> 16);
+		this.buffer[position + 2] = (byte) (value >>> 8);
+		this.buffer[position + 3] = (byte) value;
+	}
+
+	/**
+	 * Write the string in modified UTF-8 prefixed by its length, as {@link java.io.DataOutput#writeUTF(String)}
+	 *
+	 * @param value
+	 */
+	public void writeUTF(String value) {
+		final int start = this.length;
+		final int chars = value.length();
+
+		// Reserve the worst case, shrinks back below
+		this.ensureCapacity(start + 2 + chars * 3);
+		int index = start + 2;
+
+		for (int i = 0; i < chars; i++) {
+			final char c = value.charAt(i);
+
+			if (c != 0 && c < 0x80)
+				this.buffer[index++] = (byte) c;
+
+			else if (c < 0x800) {
+				this.buffer[index++] = (byte) (0xC0 | (c >> 6));
+				this.buffer[index++] = (byte) (0x80 | (c & 0x3F));
+
+			} else {
+				this.buffer[index++] = (byte) (0xE0 | (c >> 12));
+				this.buffer[index++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				this.buffer[index++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		final int encoded = index - start - 2;
+		Preconditions.checkArgument(encoded <= 0xFFFF, "String too long to write, " + encoded + " bytes exceeds 65535");
+
+		this.buffer[start] = (byte) (encoded >>> 8);
+		this.buffer[start + 1] = (byte) encoded;
+		this.length = index;
+	}
+
+	public void write(byte[] data) {
+		this.write(data, 0, data.length);
+	}
+
+	public void write(byte[] data, int offset, int length) {
+		this.ensureCapacity(this.length + length);
+		System.arraycopy(data, offset, this.buffer, this.length, length);
+		this.length += length;
+	}
+
+	/**
+	 * Return how many bytes were written
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.length;
+	}
+
+	/**
+	 * Return a copy of the written bytes
+	 *
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.length);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > this.buffer.length)
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length * 2));
+	}
+}
@@ -0,0 +1,187 @@
+package org.mineacademy.velocitycontrol.network;
+
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.listener.IncomingMessage;
+import org.mineacademy.velocitycontrol.listener.OutgoingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+
+/**
+ * A packet ready to be sent to any amount of servers. Each encoding
+ * is produced at most once and the same array is shared by all servers speaking it.
+ *
+ * The returned arrays must not be modified.
+ */
+public final class Payload {
+
+	/**
+	 * The packet action
+	 */
+	@Getter
+	private final ProxyPacket action;
+
+	/**
+	 * The message to encode from, or null if created from raw data
+	 */
+	private final OutgoingMessage message;
+
+	/**
+	 * The raw data this payload was created from, or null if created from a message
+	 */
+	private final byte[] source;
+
+	/**
+	 * If this is a protocol handshake, see {@link #handshake(OutgoingMessage)}
+	 */
+	@Getter
+	private final boolean handshake;
+
+	/**
+	 * The encoded packet by {@link Protocol#getEncoding(String)}
+	 */
+	private final byte[][] encodings = new byte[Protocol.ENCODINGS][];
+
+	/**
+	 * The packets to send by encoding, usually just the encoded packet, see {@link #getParts(int)}
+	 */
+	private final byte[][][] parts = new byte[Protocol.ENCODINGS][][];
+
+	/**
+	 * Each of the packets to send split by {@link Fragments}, by encoding
+	 */
+	private final byte[][][][] fragments = new byte[Protocol.ENCODINGS][][][];
+
+	private Payload(ProxyPacket action, OutgoingMessage message, byte[] source, boolean handshake) {
+		this.action = action;
+		this.message = message;
+		this.source = source;
+		this.handshake = handshake;
+
+		if (source != null)
+			this.encodings[Protocol.normalize(Protocol.getEncoding(source), action)] = source;
+	}
+
+	/**
+	 * Create a payload from the given message, freezing its body
+	 *
+	 * @param message
+	 * @return
+	 */
+	public static Payload of(OutgoingMessage message) {
+		message.getBody(true);
+
+		return new Payload(message.getAction(), message, null, false);
+	}
+
+	/**
+	 * Create a payload from the given {@link ProxyPacket#PROTOCOL_HELLO} answer, freezing its body.
+	 * It goes ahead of the packets queued for the server, alone in the legacy header, see {@link Relay}.
+	 *
+	 * @param message
+	 * @return
+	 */
+	public static Payload handshake(OutgoingMessage message) {
+		message.getBody(true);
+
+		return new Payload(message.getAction(), message, null, true);
+	}
+
+	/**
+	 * Create a payload from a raw packet received from a server
+	 *
+	 * @param action
+	 * @param data
+	 * @return
+	 */
+	public static Payload of(ProxyPacket action, byte[] data) {
+		return new Payload(action, null, data, false);
+	}
+
+	/**
+	 * Return the packet in the given encoding, encoding it on first use
+	 *
+	 * @param encoding
+	 * @return
+	 */
+	public synchronized byte[] getData(int encoding) {
+		encoding = Protocol.normalize(encoding, this.action);
+		byte[] data = this.encodings[encoding];
+
+		if (data == null) {
+			data = this.message != null ? this.message.compileData(encoding) : Protocol.transcode(this.source, encoding);
+
+			this.encodings[encoding] = data;
+			Relay.recordEncode();
+		}
+
+		return data;
+	}
+
+	/**
+	 * Return the packets to send in the given encoding, encoding them on first use. This is just the
+	 * encoded packet, unless its merged map is too large for one packet without binary maps, see
+	 * {@link OutgoingMessage#compileParts(int)}. If the packet cannot be encoded at all, this is
+	 * logged once and no packets are returned, instead of failing for every server it is sent to.
+	 *
+	 * @param encoding
+	 * @return
+	 */
+	public synchronized byte[][] getParts(int encoding) {
+		encoding = Protocol.normalize(encoding, this.action);
+		byte[][] parts = this.parts[encoding];
+
+		if (parts == null) {
+			try {
+				if (this.message != null) {
+					parts = this.message.compileParts(encoding);
+
+					if (parts.length == 1) {
+						this.encodings[encoding] = parts[0];
+						Relay.recordEncode();
+					}
+
+				} else
+					parts = new byte[][] { this.getData(encoding) };
+
+			} catch (final IllegalArgumentException ex) {
+				VelocityControl.getLogger().warn("Could not encode " + this.action + " for servers with encoding " + encoding + ", not sending it to them: " + ex.getMessage());
+
+				parts = new byte[0][];
+			}
+
+			this.parts[encoding] = parts;
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Return a new reader over this packet, e.g. to look into its fields while relaying it
+	 *
+	 * @return
+	 */
+	public IncomingMessage read() {
+		return new IncomingMessage(this.source != null ? this.source : this.getData(Protocol.COMPACT));
+	}
+
+	/**
+	 * Return the given packet of {@link #getParts(int)} split into fragments, splitting it on first use
+	 *
+	 * @param encoding
+	 * @param part
+	 * @return
+	 */
+	public synchronized byte[][] getFragments(int encoding, int part) {
+		final byte[][] parts = this.getParts(encoding);
+
+		encoding = Protocol.normalize(encoding, this.action);
+
+		if (this.fragments[encoding] == null)
+			this.fragments[encoding] = new byte[parts.length][][];
+
+		if (this.fragments[encoding][part] == null)
+			this.fragments[encoding][part] = Fragments.split(parts[part]);
+
+		return this.fragments[encoding][part];
+	}
+}
@@ -0,0 +1,233 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts, for each watched permission, how many players holding it are on each server,
+ * so that packets only staff can see are not sent to servers without staff.
+ *
+ * Permissions are checked on the proxy when a player connects or switches servers and
+ * every {@link Settings.Network#Permission_Refresh} milliseconds, since Velocity has no
+ * event for permission changes. Only used with {@link Settings.Network#Permission_Routing}.
+ */
+public final class PermissionIndex {
+
+	/**
+	 * The permission to see spy messages, the same the proxy checks for its own spy
+	 */
+	public static final String SPY_PERMISSION = "chatcontrol.command.spy";
+
+	/**
+	 * How many permissions we count at most, packets with other permissions go to all servers
+	 */
+	private static final int MAX_WATCHED = 64;
+
+	/**
+	 * The singleton, registered as a listener on startup
+	 */
+	@Getter
+	private static final PermissionIndex instance = new PermissionIndex();
+
+	/**
+	 * Permissions we count holders of
+	 */
+	private final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Holders by permission and server name, replaced as a whole on refresh
+	 */
+	private volatile Map<String, Map<String, Integer>> counts = new ConcurrentHashMap<>();
+
+	/**
+	 * The server and watched permissions of each player as counted, guarded by this
+	 */
+	private final Map<UUID, Holder> holders = new HashMap<>();
+
+	/**
+	 * The periodic refresh, guarded by this
+	 */
+	private ScheduledTask refreshTask;
+
+	private PermissionIndex() {
+	}
+
+	/**
+	 * Return true if NOTIFY and SPY packets are routed by permission
+	 *
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return Settings.getSettings().Network.Permission_Routing;
+	}
+
+	/**
+	 * Start or stop counting according to settings, call after they are loaded
+	 */
+	public synchronized void load() {
+		if (this.refreshTask != null) {
+			this.refreshTask.cancel();
+			this.refreshTask = null;
+		}
+
+		this.watched.clear();
+
+		if (isEnabled()) {
+			final long period = Settings.getSettings().Network.Permission_Refresh;
+
+			this.watched.add(SPY_PERMISSION);
+
+			if (period > 0)
+				this.refreshTask = VelocityControl.getServer().getScheduler().buildTask(VelocityControl.getInstance(), this::refresh)
+						.delay(period, TimeUnit.MILLISECONDS)
+						.repeat(period, TimeUnit.MILLISECONDS)
+						.schedule();
+		}
+
+		this.refresh();
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onConnect(ServerConnectedEvent event) {
+		if (isEnabled())
+			synchronized (this) {
+				this.count(event.getPlayer(), event.getServer().getServerInfo().getName(), this.counts);
+			}
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onDisconnect(DisconnectEvent event) {
+		if (isEnabled())
+			synchronized (this) {
+				this.uncount(this.holders.remove(event.getPlayer().getUniqueId()), this.counts);
+			}
+	}
+
+	/**
+	 * Check the watched permissions of all online players again
+	 */
+	public synchronized void refresh() {
+		final Map<String, Map<String, Integer>> counts = new ConcurrentHashMap<>();
+
+		this.holders.clear();
+
+		if (isEnabled())
+			for (final Player player : VelocityControl.getPlayers())
+				player.getCurrentServer().ifPresent(connection -> this.count(player, connection.getServerInfo().getName(), counts));
+
+		this.counts = counts;
+	}
+
+	/**
+	 * Return true if the given server has a player with the given permission. The permission
+	 * is watched from now on, unless we watch too many already and then this returns true.
+	 *
+	 * @param permission
+	 * @param serverName
+	 * @return
+	 */
+	public boolean canReceive(String permission, String serverName) {
+		if (!this.watched.contains(permission) && !this.watch(permission))
+			return true;
+
+		final Map<String, Integer> servers = this.counts.get(permission);
+		final Integer count = servers != null ? servers.get(serverName) : null;
+
+		return count != null && count > 0;
+	}
+
+	/*
+	 * Start counting holders of the given permission
+	 */
+	private synchronized boolean watch(String permission) {
+		if (this.watched.contains(permission))
+			return true;
+
+		if (this.watched.size() >= MAX_WATCHED)
+			return false;
+
+		this.watched.add(permission);
+		this.refresh();
+
+		return true;
+	}
+
+	/*
+	 * Count the watched permissions of the player on the given server, replacing what was counted before
+	 */
+	private void count(Player player, String serverName, Map<String, Map<String, Integer>> counts) {
+		final Set<String> permissions = new HashSet<>();
+
+		for (final String permission : this.watched)
+			if (player.hasPermission(permission))
+				permissions.add(permission);
+
+		final Holder holder = new Holder(serverName, permissions);
+
+		this.uncount(this.holders.put(player.getUniqueId(), holder), counts);
+
+		for (final String permission : permissions)
+			counts.computeIfAbsent(permission, key -> new ConcurrentHashMap<>()).merge(serverName, 1, Integer::sum);
+	}
+
+	/*
+	 * Remove what was counted for a player
+	 */
+	private void uncount(Holder holder, Map<String, Map<String, Integer>> counts) {
+		if (holder == null)
+			return;
+
+		for (final String permission : holder.permissions) {
+			final Map<String, Integer> servers = counts.get(permission);
+
+			if (servers != null)
+				servers.computeIfPresent(holder.serverName, (key, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+
+	/**
+	 * Return the human readable count of watched permission holders
+	 *
+	 * @return
+	 */
+	public String getStatistics() {
+		if (!isEnabled())
+			return "Permissions: routing disabled";
+
+		final StringBuilder line = new StringBuilder("Permissions: " + this.watched.size() + " watched");
+
+		new TreeMap<>(this.counts).forEach((permission, servers) -> line.append(", ").append(permission).append(" on ").append(servers.size()).append(" servers"));
+
+		return line.toString();
+	}
+
+	/*
+	 * What we counted for one player
+	 */
+	private static final class Holder {
+
+		private final String serverName;
+		private final Set<String> permissions;
+
+		private Holder(String serverName, Set<String> permissions) {
+			this.serverName = serverName;
+			this.permissions = permissions;
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.velocitypowered.api.proxy.ServerConnection;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.listener.IncomingMessage;
+import org.mineacademy.velocitycontrol.listener.OutgoingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Describes the packet header formats and keeps track of which
+ * version each server negotiated.
+ *
+ * Version 1 is the original header of four UTF strings: the unused channel
+ * name, the sender UUID, the server name and the {@link ProxyPacket} name.
+ *
+ * Version 2 is the compact header:
+ *
+ * 1) One byte of magic and version, see {@link #MAGIC}
+ * 2) The {@link ProxyPacket#getId()} as a varint
+ * 3) The sender UUID as two longs
+ * 4) The server id as a varint, see {@link #getServerId(String)}
+ *
+ * The body is the same in both versions. A version 1 packet always starts with
+ * the high byte of the channel name length which is zero, so the two are never confused.
+ * Servers speak version 1 until they send us {@link ProxyPacket#PROTOCOL_HELLO}.
+ *
+ * On top of the version, servers negotiate optional features. With {@link #FEATURE_COMPRESSION}
+ * the first byte may carry the {@link #COMPRESSED} flag, in which case the header is followed
+ * by the inflated body size as a varint and the body deflated by {@link Compression}.
+ * With {@link #FEATURE_BINARY_MAPS} the maps of packets carrying the {@link #BINARY_MAPS} flag
+ * are written by {@link MapCodec} instead of as json.
+ *
+ * An encoding is the version combined with the flags a server accepts, see {@link #getEncoding(String)}.
+ *
+ * A compact first byte with the {@link #ENVELOPE} flag does not start a packet but an envelope
+ * around packets, the next byte is its type. With {@link #FEATURE_FRAGMENTS} packets that are
+ * too large for one plugin message are sent as {@link #FRAGMENT} envelopes, see {@link Fragments}.
+ * With {@link #FEATURE_BATCHING} small packets sent close together arrive in one {@link #BATCH}
+ * envelope, see {@link Batcher}. With {@link #FEATURE_SEQUENCING} every plugin message in either
+ * direction is wrapped in a {@link #SEQUENCED} envelope, see {@link LinkStats}. With
+ * {@link #FEATURE_PRESENCE} the server gets who joins and leaves the network instead of the
+ * full player list every sync tick, see {@link org.mineacademy.velocitycontrol.PresenceSync}.
+ * With {@link #FEATURE_ANTI_ENTROPY} the server compares a hash tree of the synced player data
+ * instead of getting all of it resent, see {@link org.mineacademy.velocitycontrol.ClusterSync}.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Protocol {
+
+	/**
+	 * The original header of UTF strings
+	 */
+	public static final int LEGACY = 1;
+
+	/**
+	 * The compact header, also the highest version we support
+	 */
+	public static final int COMPACT = 2;
+
+	/**
+	 * The two top bits of the first byte marking a compact packet
+	 */
+	public static final int MAGIC = 0xC0;
+
+	/**
+	 * The bits of the first byte holding the version
+	 */
+	public static final int VERSION_MASK = 0x07;
+
+	/**
+	 * The flag of the first byte marking a deflated body
+	 */
+	public static final int COMPRESSED = 0x08;
+
+	/**
+	 * The flag of the first byte marking maps in the binary form of {@link MapCodec}
+	 */
+	public static final int BINARY_MAPS = 0x10;
+
+	/**
+	 * The flag of the first byte marking an envelope, followed by the envelope type
+	 */
+	public static final int ENVELOPE = 0x20;
+
+	/**
+	 * The envelope type of a part of a larger packet
+	 */
+	public static final int FRAGMENT = 0;
+
+	/**
+	 * The envelope type of several packets sent together
+	 */
+	public static final int BATCH = 1;
+
+	/**
+	 * The envelope type of a message with its sequence number and send time
+	 */
+	public static final int SEQUENCED = 2;
+
+	/**
+	 * How many different encodings there are, see {@link #getEncoding(String)}
+	 */
+	public static final int ENCODINGS = 32;
+
+	/**
+	 * The server accepts deflated bodies
+	 */
+	public static final int FEATURE_COMPRESSION = 1;
+
+	/**
+	 * The server reads and writes maps in the binary form
+	 */
+	public static final int FEATURE_BINARY_MAPS = 2;
+
+	/**
+	 * The server reassembles packets split into fragments
+	 */
+	public static final int FEATURE_FRAGMENTS = 4;
+
+	/**
+	 * The server reads batch envelopes
+	 */
+	public static final int FEATURE_BATCHING = 8;
+
+	/**
+	 * The server sends and reads sequenced envelopes
+	 */
+	public static final int FEATURE_SEQUENCING = 16;
+
+	/**
+	 * The server reads presence deltas and checksums and asks for the player list when it drifts
+	 */
+	public static final int FEATURE_PRESENCE = 32;
+
+	/**
+	 * The server compares the data tree and asks for the buckets that differ
+	 */
+	public static final int FEATURE_ANTI_ENTROPY = 64;
+
+	/**
+	 * All features we support
+	 */
+	public static final int FEATURES = FEATURE_COMPRESSION | FEATURE_BINARY_MAPS | FEATURE_FRAGMENTS | FEATURE_BATCHING | FEATURE_SEQUENCING | FEATURE_PRESENCE | FEATURE_ANTI_ENTROPY;
+
+	/**
+	 * Negotiated versions by server name, servers not in this map speak {@link #LEGACY}
+	 */
+	private static final Map<String, Integer> versions = new ConcurrentHashMap<>();
+
+	/**
+	 * Negotiated features by server name
+	 */
+	private static final Map<String, Integer> features = new ConcurrentHashMap<>();
+
+	/**
+	 * Interned server names, their index is their id. Id 0 is the proxy itself.
+	 */
+	private static final List<String> serverNames = new CopyOnWriteArrayList<>(List.of(""));
+
+	/**
+	 * Interned server ids by name
+	 */
+	private static final Map<String, Integer> serverIds = new ConcurrentHashMap<>(Map.of("", 0));
+
+	/* ------------------------------------------------------------------------------- */
+	/* Negotiation */
+	/* ------------------------------------------------------------------------------- */
+
+	/**
+	 * Return the version negotiated with the given server
+	 *
+	 * @param serverName the server name as in Velocity config
+	 * @return
+	 */
+	public static int getVersion(String serverName) {
+		return versions.getOrDefault(serverName, LEGACY);
+	}
+
+	/**
+	 * Return the features negotiated with the given server
+	 *
+	 * @param serverName the server name as in Velocity config
+	 * @return
+	 */
+	public static int getFeatures(String serverName) {
+		return features.getOrDefault(serverName, 0);
+	}
+
+	/**
+	 * Return the encoding packets for the given server are written in,
+	 * that is the negotiated version combined with the flags it accepts
+	 *
+	 * @param serverName the server name as in Velocity config
+	 * @return
+	 */
+	public static int getEncoding(String serverName) {
+		final int version = getVersion(serverName);
+
+		if (version == LEGACY)
+			return LEGACY;
+
+		final int agreedFeatures = getFeatures(serverName);
+
+		return version
+				| ((agreedFeatures & FEATURE_COMPRESSION) != 0 ? COMPRESSED : 0)
+				| ((agreedFeatures & FEATURE_BINARY_MAPS) != 0 ? BINARY_MAPS : 0);
+	}
+
+	/**
+	 * Return the encoding with the flags that make no difference for the given action removed,
+	 * so that packets without maps are shared between servers with and without binary maps
+	 *
+	 * @param encoding
+	 * @param action
+	 * @return
+	 */
+	public static int normalize(int encoding, ProxyPacket action) {
+		return action.hasMaps() ? encoding : encoding & ~BINARY_MAPS;
+	}
+
+	/**
+	 * Agree on a version and features with the server that sent us {@link ProxyPacket#PROTOCOL_HELLO}
+	 * and answer it with the agreed ones and the server id table
+	 *
+	 * @param connection
+	 * @param offeredVersion the highest version the server supports
+	 * @param offeredFeatures the features the server supports
+	 */
+	public static void negotiate(ServerConnection connection, int offeredVersion, int offeredFeatures) {
+		final String serverName = connection.getServerInfo().getName();
+		final int version = Math.max(LEGACY, Math.min(offeredVersion, COMPACT));
+		final int agreedFeatures = version == LEGACY ? 0 : offeredFeatures & FEATURES;
+
+		VelocityControl.getServers().forEach(server -> getServerId(server.getServerInfo().getName()));
+
+		// The server numbers its messages from 0 again after each hello
+		LinkStats.clear(serverName);
+
+		// Always answer in the legacy header, the server may not have known our reply yet. Queued
+		// before we switch, so nothing encoded for the agreed protocol reaches the server ahead of it
+		Relay.send(connection.getServer(), Payload.handshake(createHello(serverName, version, agreedFeatures)));
+
+		if (version == LEGACY) {
+			versions.remove(serverName);
+			features.remove(serverName);
+
+		} else {
+			versions.put(serverName, version);
+			features.put(serverName, agreedFeatures);
+		}
+
+		Debugger.debug("packet", "Server " + serverName + " offered protocol " + offeredVersion + " with features " + offeredFeatures + ", using " + version + " with " + agreedFeatures);
+	}
+
+	/**
+	 * Fall back to the legacy protocol for the given server, called when it sends us
+	 * a legacy packet after negotiating, i.e. it was restarted with an older version
+	 *
+	 * @param serverName
+	 */
+	public static void reset(String serverName) {
+		features.remove(serverName);
+		Fragments.clear(serverName);
+		Batcher.clear(serverName);
+		LinkStats.clear(serverName);
+
+		if (versions.remove(serverName) != null)
+			Debugger.debug("packet", "Server " + serverName + " fell back to legacy protocol");
+	}
+
+	/*
+	 * Create the hello answer for the given server
+	 */
+	private static OutgoingMessage createHello(String serverName, int version, int features) {
+		final OutgoingMessage message = new OutgoingMessage(ProxyPacket.PROTOCOL_HELLO);
+
+		message.writeInt(version);
+		message.writeInt(features);
+		message.writeInt(getServerId(serverName));
+		message.writeString(new Gson().toJson(serverNames));
+
+		return message;
+	}
+
+	/* ------------------------------------------------------------------------------- */
+	/* Server ids */
+	/* ------------------------------------------------------------------------------- */
+
+	/**
+	 * Return the interned id of the given server name, assigning a new one if needed.
+	 * Servers on the compact protocol receive the updated table before any packet using it.
+	 *
+	 * @param serverName
+	 * @return
+	 */
+	public static int getServerId(String serverName) {
+		final Integer id = serverIds.get(serverName);
+
+		return id != null ? id : intern(serverName);
+	}
+
+	/**
+	 * Return the server name by its interned id
+	 *
+	 * @param id
+	 * @return
+	 */
+	public static String getServerName(int id) {
+		Preconditions.checkArgument(id >= 0 && id < serverNames.size(), "Unknown server id " + id);
+
+		return serverNames.get(id);
+	}
+
+	private static synchronized int intern(String serverName) {
+		final Integer existing = serverIds.get(serverName);
+
+		if (existing != null)
+			return existing;
+
+		final int id = serverNames.size();
+
+		serverNames.add(serverName);
+
+		// Tell servers that already know the table about the new id, before anyone can encode it
+		versions.forEach((name, version) -> VelocityControl.getServer().getServer(name).ifPresent(
+				server -> Relay.send(server, Payload.handshake(createHello(name, version, getFeatures(name))))));
+
+		serverIds.put(serverName, id);
+
+		return id;
+	}
+
+	/* ------------------------------------------------------------------------------- */
+	/* Headers */
+	/* ------------------------------------------------------------------------------- */
+
+	/**
+	 * Return the header version of the given raw packet
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static int getVersion(byte[] data) {
+		return data.length > 0 && (data[0] & MAGIC) == MAGIC ? data[0] & VERSION_MASK : LEGACY;
+	}
+
+	/**
+	 * Return true if the given raw data is an envelope around packets rather than a packet
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isEnvelope(byte[] data) {
+		return data.length > 1 && (data[0] & (MAGIC | ENVELOPE)) == (MAGIC | ENVELOPE);
+	}
+
+	/**
+	 * Return the type of the given envelope, such as {@link #FRAGMENT}
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static int getEnvelopeType(byte[] data) {
+		return data[1] & 0xFF;
+	}
+
+	/**
+	 * Return the encoding of the given raw packet, its version and flags
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static int getEncoding(byte[] data) {
+		return data.length > 0 && (data[0] & MAGIC) == MAGIC ? data[0] & (VERSION_MASK | COMPRESSED | BINARY_MAPS) : LEGACY;
+	}
+
+	/**
+	 * Return true if the given raw packet has a deflated body
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isCompressed(byte[] data) {
+		return (getEncoding(data) & COMPRESSED) != 0;
+	}
+
+	/**
+	 * Return true if the maps in the given raw packet are in the binary form
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean hasBinaryMaps(byte[] data) {
+		return (getEncoding(data) & BINARY_MAPS) != 0;
+	}
+
+	/**
+	 * Write the header in the given version
+	 *
+	 * @param out
+	 * @param version
+	 * @param flags the flags of the first byte of the compact header
+	 * @param channelName
+	 * @param senderUid
+	 * @param serverName
+	 * @param action
+	 */
+	public static void writeHeader(PacketWriter out, int version, int flags, String channelName, UUID senderUid, String serverName, ProxyPacket action) {
+		if (version == LEGACY) {
+			out.writeUTF(channelName);
+			out.writeUTF(senderUid.toString());
+			out.writeUTF(serverName);
+			out.writeUTF(action.name());
+
+		} else {
+			out.writeByte(MAGIC | flags | version);
+			out.writeVarInt(action.getId());
+			out.writeLong(senderUid.getMostSignificantBits());
+			out.writeLong(senderUid.getLeastSignificantBits());
+			out.writeVarInt(getServerId(serverName));
+		}
+	}
+
+	/**
+	 * Encode a packet with the given header fields and body in the given encoding. The body
+	 * is only deflated if the encoding allows it, it is over the configured threshold
+	 * and deflating actually makes it smaller. The maps in the body must already be
+	 * in the form the encoding asks for.
+	 *
+	 * @param encoding
+	 * @param channelName
+	 * @param senderUid
+	 * @param serverName
+	 * @param action
+	 * @param body
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] encode(int encoding, String channelName, UUID senderUid, String serverName, ProxyPacket action, byte[] body, int offset, int length) {
+		final int version = encoding & VERSION_MASK;
+		final int flags = version == LEGACY ? 0 : normalize(encoding, action) & BINARY_MAPS;
+		final int threshold = Settings.getSettings().Network.Compression_Threshold;
+		final PacketWriter out = PacketWriter.borrow(length + 64);
+
+		try {
+			if ((encoding & COMPRESSED) != 0 && threshold > 0 && length >= threshold) {
+				final PacketWriter deflated = PacketWriter.borrow(length);
+
+				try {
+					final int compressedLength = Compression.compress(body, offset, length, deflated);
+
+					if (compressedLength + PacketWriter.getVarIntSize(length) < length) {
+						Compression.record(length, compressedLength);
+
+						writeHeader(out, version, flags | COMPRESSED, channelName, senderUid, serverName, action);
+						out.writeVarInt(length);
+						out.write(deflated.toByteArray());
+
+						return out.toByteArray();
+					}
+
+				} finally {
+					deflated.release();
+				}
+			}
+
+			writeHeader(out, version, flags, channelName, senderUid, serverName, action);
+			out.write(body, offset, length);
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Return the given raw packet with its body inflated, or the same array if it is not compressed
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static byte[] decompress(byte[] data) {
+		if (!isCompressed(data))
+			return data;
+
+		// Skip the opcode, sender and server id to find the end of the compact header
+		final int senderOffset = 1 + PacketWriter.getVarIntSize(PacketReader.readVarInt(data, 1));
+		final int sizeOffset = senderOffset + 16 + PacketWriter.getVarIntSize(PacketReader.readVarInt(data, senderOffset + 16));
+		final int inflatedLength = PacketReader.readVarInt(data, sizeOffset);
+
+		// The size is declared by the peer, check it before sizing the buffer by it
+		Compression.checkInflatedSize(inflatedLength);
+
+		final int bodyOffset = sizeOffset + PacketWriter.getVarIntSize(inflatedLength);
+		final PacketWriter out = PacketWriter.borrow(sizeOffset + inflatedLength);
+
+		try {
+			out.writeByte(data[0] & ~COMPRESSED);
+			out.write(data, 1, sizeOffset - 1);
+			Compression.decompress(data, bodyOffset, data.length - bodyOffset, inflatedLength, out);
+
+			return out.toByteArray();
+
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * Rewrite the given raw packet into the given encoding, keeping the body
+	 * and converting its maps if needed. Returns the same array if it already is in that encoding.
+	 *
+	 * @param data
+	 * @param encoding
+	 * @return
+	 */
+	public static byte[] transcode(byte[] data, int encoding) {
+		final ProxyPacket action = IncomingMessage.peekAction(data);
+		Preconditions.checkArgument(action != null, "Cannot transcode a malformed packet");
+
+		final int current = normalize(getEncoding(data), action);
+		encoding = normalize(encoding, action);
+
+		if (current == encoding)
+			return data;
+
+		// Compression is optional, an uncompressed packet below the threshold stays as it is
+		if ((current | COMPRESSED) == encoding && data.length < Settings.getSettings().Network.Compression_Threshold)
+			return data;
+
+		final IncomingMessage message = new IncomingMessage(data);
+		final byte[] raw = message.getData();
+		final int bodyOffset = message.getBodyOffset();
+
+		if ((current & BINARY_MAPS) != (encoding & BINARY_MAPS)) {
+			final byte[] body = MapCodec.convertBody(action, raw, bodyOffset, (encoding & BINARY_MAPS) != 0);
+
+			return encode(encoding, message.getChannelName(), message.getSenderUid(), message.getServerName(), action, body, 0, body.length);
+		}
+
+		return encode(encoding, message.getChannelName(), message.getSenderUid(), message.getServerName(), action, raw, bodyOffset, raw.length - bodyOffset);
+	}
+}
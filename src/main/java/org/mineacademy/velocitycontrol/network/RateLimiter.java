@@ -0,0 +1,204 @@
+package org.mineacademy.velocitycontrol.network;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how many packets per second each server may send us, in total and of each
+ * {@link ProxyPacket}, see {@link Settings.RateLimit}.
+ *
+ * Each limit is a token bucket holding one second worth of packets, kept as the time
+ * the bucket will be full again and updated with a single compare and set, so servers
+ * never wait on each other. A packet takes a token from both its own and the server bucket,
+ * or from neither if either would make it wait too long. A packet over the limit waits for its
+ * turn up to {@link Settings.RateLimit#Max_Delay} milliseconds and is dropped if that is not enough.
+ * The wait pauses the lane of the server, see {@link InboundExecutor#pause(String, long, Runnable)},
+ * so it only holds up the server that sends too much and no thread sleeps through it.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RateLimiter {
+
+	/**
+	 * The slot of the limit for all packets of a server, after the slots of each packet
+	 */
+	private static final int TOTAL = ProxyPacket.values().length;
+
+	/**
+	 * Packets per second by {@link ProxyPacket#getId()} and for {@link #TOTAL}, 0 for no limit
+	 */
+	private static volatile int[] limits = new int[TOTAL + 1];
+
+	/**
+	 * Buckets by server name
+	 */
+	private static final Map<String, AtomicLongArray> buckets = new ConcurrentHashMap<>();
+
+	/**
+	 * Packets dropped and delayed, by {@link ProxyPacket#getId()} and for unknown packets at {@link #TOTAL}
+	 */
+	private static final AtomicLongArray dropped = new AtomicLongArray(TOTAL + 1);
+	private static final AtomicLongArray delayed = new AtomicLongArray(TOTAL + 1);
+
+	/**
+	 * Packets dropped by server name
+	 */
+	private static final Map<String, LongAdder> droppedByServer = new ConcurrentHashMap<>();
+
+	/**
+	 * Read the limits from settings, call after they are loaded
+	 */
+	public static void load() {
+		final Settings.RateLimit settings = Settings.getSettings().Network.Rate_Limit;
+		final int[] limits = new int[TOTAL + 1];
+
+		for (final ProxyPacket action : ProxyPacket.values())
+			limits[action.getId()] = Math.max(0, settings.Packet);
+
+		if (settings.Packets != null)
+			settings.Packets.forEach((name, limit) -> {
+				final ProxyPacket action = ProxyPacket.getByName(name);
+
+				if (action == null)
+					VelocityControl.getLogger().warn("Ignoring rate limit of unknown packet " + name);
+				else
+					limits[action.getId()] = Math.max(0, limit);
+			});
+
+		limits[TOTAL] = Math.max(0, settings.Server);
+
+		RateLimiter.limits = limits;
+	}
+
+	/**
+	 * Take a permit for a packet from the given server
+	 *
+	 * @param serverName the server the packet came from
+	 * @param action the packet, or null if unknown
+	 * @return how many nanoseconds the packet must wait for its turn, 0 if it may be handled
+	 *         right away, or -1 if it is over the limit and must be dropped
+	 */
+	public static long acquire(String serverName, ProxyPacket action) {
+		final int[] limits = RateLimiter.limits;
+		final int slot = action != null ? action.getId() : TOTAL;
+
+		if (limits[TOTAL] == 0 && (action == null || limits[slot] == 0))
+			return 0;
+
+		final AtomicLongArray serverBuckets = getBuckets(serverName);
+		final long maxWait = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Settings.getSettings().Network.Rate_Limit.Max_Delay));
+		final long packetWait = action != null ? reserve(serverBuckets, slot, limits[slot], maxWait) : 0;
+		final long serverWait = packetWait >= 0 ? reserve(serverBuckets, TOTAL, limits[TOTAL], maxWait) : -1;
+
+		// Give back the token of the packet type if the server bucket refused it
+		if (packetWait >= 0 && serverWait < 0 && action != null)
+			release(serverBuckets, slot, limits[slot]);
+
+		if (packetWait < 0 || serverWait < 0) {
+			dropped.incrementAndGet(slot);
+			droppedByServer.computeIfAbsent(serverName, name -> new LongAdder()).increment();
+
+			// Checked first so that a flood does not build a message for each packet
+			if (Settings.getSettings().Debug)
+				Debugger.debug("packet", "Dropped " + action + " from '" + serverName + "', it sends more than its rate limit");
+
+			return -1;
+		}
+
+		final long wait = Math.max(packetWait, serverWait);
+
+		if (wait > 0)
+			delayed.incrementAndGet(slot);
+
+		return wait;
+	}
+
+	/*
+	 * Take a token from the bucket at the given slot, returning how many nanoseconds
+	 * to wait until it is ours or -1 if that is longer than the given maximum
+	 */
+	private static long reserve(AtomicLongArray buckets, int slot, int perSecond, long maxWait) {
+		if (perSecond == 0)
+			return 0;
+
+		final long interval = TimeUnit.SECONDS.toNanos(1) / perSecond;
+		final long capacity = interval * perSecond;
+
+		while (true) {
+			final long fullAt = buckets.get(slot);
+			final long now = System.nanoTime();
+
+			// The bucket is full again at fullAt, each packet pushes it back by one interval
+			final long start = fullAt - now > 0 ? fullAt : now;
+			final long wait = start + interval - capacity - now;
+
+			if (wait > maxWait)
+				return -1;
+
+			if (buckets.compareAndSet(slot, fullAt, start + interval))
+				return Math.max(0, wait);
+		}
+	}
+
+	/*
+	 * Put back a token taken from the bucket at the given slot
+	 */
+	private static void release(AtomicLongArray buckets, int slot, int perSecond) {
+		if (perSecond > 0)
+			buckets.addAndGet(slot, -TimeUnit.SECONDS.toNanos(1) / perSecond);
+	}
+
+	private static AtomicLongArray getBuckets(String serverName) {
+		final AtomicLongArray serverBuckets = buckets.get(serverName);
+
+		return serverBuckets != null ? serverBuckets : buckets.computeIfAbsent(serverName, name -> {
+			final AtomicLongArray created = new AtomicLongArray(TOTAL + 1);
+			final long now = System.nanoTime();
+
+			// Start with full buckets
+			for (int slot = 0; slot <= TOTAL; slot++)
+				created.set(slot, now);
+
+			return created;
+		});
+	}
+
+	/**
+	 * Return the human readable rate limit statistics since startup
+	 *
+	 * @return
+	 */
+	public static List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+		long totalDropped = 0;
+		long totalDelayed = 0;
+
+		for (int slot = 0; slot <= TOTAL; slot++) {
+			final long droppedPackets = dropped.get(slot);
+			final long delayedPackets = delayed.get(slot);
+
+			if (droppedPackets > 0 || delayedPackets > 0)
+				lines.add(" Limited " + (slot == TOTAL ? "unknown packets" : ProxyPacket.getById(slot)) + ": " + droppedPackets + " dropped, " + delayedPackets + " delayed");
+
+			totalDropped += droppedPackets;
+			totalDelayed += delayedPackets;
+		}
+
+		new TreeMap<>(droppedByServer).forEach((serverName, count) -> lines.add(" Limited '" + serverName + "': " + count.sum() + " dropped"));
+		lines.add(0, "Rate limit: " + totalDropped + " dropped, " + totalDelayed + " delayed");
+
+		return lines;
+	}
+}
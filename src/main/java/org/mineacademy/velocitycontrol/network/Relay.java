@@ -0,0 +1,366 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.VelocityControl;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * The single place where packets leave the proxy, fanning out
+ * a {@link Payload} to servers and counting what was sent.
+ *
+ * Everything goes through the {@link OutboundQueue} of the server. Only a handshake,
+ * see {@link Payload#handshake(org.mineacademy.velocitycontrol.listener.OutgoingMessage)},
+ * skips batches, fragments and sequence envelopes, since the server reads it before
+ * it knows what we agreed on.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Relay {
+
+	/**
+	 * How many payloads were fanned out
+	 */
+	private static final LongAdder fanOuts = new LongAdder();
+
+	/**
+	 * How many sends were skipped because the server is in another cluster
+	 */
+	private static final LongAdder outOfCluster = new LongAdder();
+
+	/**
+	 * How many sends were skipped because nobody on the server has the permission to see the payload
+	 */
+	private static final LongAdder withoutPermission = new LongAdder();
+
+	/**
+	 * How many payloads were sent to the server of one player, and how many were dropped
+	 * because the player is not online
+	 */
+	private static final LongAdder unicasts = new LongAdder();
+	private static final LongAdder unicastsOffline = new LongAdder();
+
+	/**
+	 * How many times a payload had to be encoded into another encoding
+	 */
+	private static final LongAdder encodes = new LongAdder();
+
+	/**
+	 * Plugin messages and bytes sent by {@link ProxyPacket#getId()}
+	 */
+	private static final AtomicLongArray sentPackets = new AtomicLongArray(ProxyPacket.values().length);
+	private static final AtomicLongArray sentBytes = new AtomicLongArray(ProxyPacket.values().length);
+
+	/**
+	 * Pass to {@link #broadcast(Payload, int)} to send to all servers
+	 */
+	public static final int NO_EXCLUSION = -1;
+
+	/**
+	 * Send the payload to all servers with players on them. Empty servers are skipped
+	 * since messages would "stack up" there, see {@link ServerRegistry#getOccupied()},
+	 * unless {@link StoreAndForward} keeps the payload for them.
+	 *
+	 * @param payload
+	 * @param excludedId the id of the server to skip, typically the sender, or {@link #NO_EXCLUSION}
+	 * @return how many servers received the payload
+	 */
+	public static int broadcast(Payload payload, int excludedId) {
+		return broadcast(payload, excludedId, RoutingTable.ANY);
+	}
+
+	/**
+	 * Send the payload to all servers with players on them that the given scope reaches,
+	 * see {@link RoutingTable}
+	 *
+	 * @param payload
+	 * @param excludedId the id of the server to skip, typically the sender, or {@link #NO_EXCLUSION}
+	 * @param scope the cluster to send to, or {@link RoutingTable#ANY}
+	 * @return how many servers received the payload
+	 */
+	public static int broadcast(Payload payload, int excludedId, int scope) {
+		return broadcast(payload, excludedId, scope, null);
+	}
+
+	/**
+	 * Send the payload to all servers with players on them that the given scope reaches
+	 * and where a player has the given permission, see {@link PermissionIndex}
+	 *
+	 * @param payload
+	 * @param excludedId the id of the server to skip, typically the sender, or {@link #NO_EXCLUSION}
+	 * @param scope the cluster to send to, or {@link RoutingTable#ANY}
+	 * @param permission the permission needed to see the payload, or null
+	 * @return how many servers received the payload
+	 */
+	public static int broadcast(Payload payload, int excludedId, int scope, String permission) {
+		final boolean debug = Settings.getSettings().Debug;
+		final boolean parked = StoreAndForward.isParked(payload.getAction());
+		int receivers = 0;
+
+		fanOuts.increment();
+
+		for (final ServerRegistry.Entry entry : parked ? ServerRegistry.getInstance().getAll() : ServerRegistry.getInstance().getOccupied()) {
+			if (entry.getId() == excludedId) {
+				if (debug)
+					Debugger.debug("packet", "\tDid not send to '" + entry.getName() + "', the server equals sender");
+
+				continue;
+			}
+
+			if (!RoutingTable.canReach(scope, entry.getName())) {
+				if (debug)
+					Debugger.debug("packet", "\tDid not send to '" + entry.getName() + "', the server is in another cluster");
+
+				outOfCluster.increment();
+				continue;
+			}
+
+			if (permission != null && !PermissionIndex.getInstance().canReceive(permission, entry.getName())) {
+				if (debug)
+					Debugger.debug("packet", "\tDid not send to '" + entry.getName() + "', nobody there has " + permission);
+
+				withoutPermission.increment();
+				continue;
+			}
+
+			if (parked ? StoreAndForward.getInstance().offer(entry, payload) : entry.getQueue().offer(payload)) {
+				if (debug)
+					Debugger.debug("packet", "\tForwarded to '" + entry.getName() + "'");
+
+				receivers++;
+			}
+		}
+
+		return receivers;
+	}
+
+	/**
+	 * Send the payload to all servers with players on them that did, or did not,
+	 * negotiate the given feature, see {@link Protocol#getFeatures(String)}
+	 *
+	 * @param payload
+	 * @param feature one of the Protocol.FEATURE_ constants
+	 * @param negotiated true to send to servers with the feature, false to those without
+	 * @return how many servers received the payload
+	 */
+	public static int broadcastByFeature(Payload payload, int feature, boolean negotiated) {
+		int receivers = 0;
+
+		fanOuts.increment();
+
+		for (final ServerRegistry.Entry entry : ServerRegistry.getInstance().getOccupied())
+			if (((Protocol.getFeatures(entry.getName()) & feature) != 0) == negotiated && entry.getQueue().offer(payload))
+				receivers++;
+
+		return receivers;
+	}
+
+	/**
+	 * Send each server with players on it that did, or did not, negotiate the given feature
+	 * the payload made for its cluster, see {@link RoutingTable#getCluster(String)}
+	 *
+	 * @param payloads makes the payload for the given cluster once, or returns null to skip it
+	 * @param feature one of the Protocol.FEATURE_ constants
+	 * @param negotiated true to send to servers with the feature, false to those without, pass 0 and false to send to all
+	 * @return how many servers received a payload
+	 */
+	public static int broadcastByCluster(IntFunction<Payload> payloads, int feature, boolean negotiated) {
+		final Map<Integer, Payload> made = new HashMap<>();
+		int receivers = 0;
+
+		fanOuts.increment();
+
+		for (final ServerRegistry.Entry entry : ServerRegistry.getInstance().getOccupied()) {
+			if (((Protocol.getFeatures(entry.getName()) & feature) != 0) != negotiated)
+				continue;
+
+			final int cluster = RoutingTable.getCluster(entry.getName());
+			final Payload payload = made.containsKey(cluster) ? made.get(cluster) : payloads.apply(cluster);
+
+			made.put(cluster, payload);
+
+			if (payload != null && entry.getQueue().offer(payload))
+				receivers++;
+		}
+
+		return receivers;
+	}
+
+	/**
+	 * Return true if a server with players on it did, or did not, negotiate the given feature
+	 *
+	 * @param feature one of the Protocol.FEATURE_ constants
+	 * @param negotiated
+	 * @return
+	 */
+	public static boolean hasServerWithFeature(int feature, boolean negotiated) {
+		for (final ServerRegistry.Entry entry : ServerRegistry.getInstance().getOccupied())
+			if (((Protocol.getFeatures(entry.getName()) & feature) != 0) == negotiated)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Send the payload only to the server the given player is on
+	 *
+	 * @param payload
+	 * @param receiver
+	 * @param excludedId the id of the server to skip, typically the sender, or {@link #NO_EXCLUSION}
+	 * @return true if the payload was queued
+	 */
+	public static boolean unicast(Payload payload, UUID receiver, int excludedId) {
+		final ServerRegistry.Entry entry = ServerRegistry.getInstance().getServerOf(receiver);
+
+		unicasts.increment();
+
+		if (entry == null) {
+			Debugger.debug("packet", "\tDropped " + payload.getAction() + ", receiver " + receiver + " is not online");
+
+			unicastsOffline.increment();
+			return false;
+		}
+
+		if (entry.getId() == excludedId) {
+			Debugger.debug("packet", "\tDid not send to '" + entry.getName() + "', the receiver is on the sender");
+
+			return false;
+		}
+
+		if (!entry.getQueue().offer(payload))
+			return false;
+
+		Debugger.debug("packet", "\tForwarded to '" + entry.getName() + "', the server of the receiver");
+		return true;
+	}
+
+	/**
+	 * Queue the payload to be sent to the given server, see {@link OutboundQueue}
+	 *
+	 * @param server
+	 * @param payload
+	 * @return false if the queue of the server is full and the payload was dropped
+	 */
+	public static boolean send(RegisteredServer server, Payload payload) {
+		return OutboundQueue.of(server).offer(payload);
+	}
+
+	/*
+	 * Send the payload to the given server in the encoding it negotiated,
+	 * called by its queue.
+	 *
+	 * A handshake is the one exception, it always goes out alone in the legacy header and
+	 * never in a sequenced envelope. The server reads it before it knows what we agreed on,
+	 * and it starts numbering our messages from 0 only after reading it.
+	 */
+	static void transmit(RegisteredServer server, Payload payload) {
+		final String serverName = server.getServerInfo().getName();
+		final int id = payload.getAction().getId();
+
+		if (payload.isHandshake()) {
+			final byte[] data = payload.getData(Protocol.LEGACY);
+
+			server.sendPluginMessage(VelocityControl.CHANNEL, data);
+			sentBytes.addAndGet(id, data.length);
+			sentPackets.incrementAndGet(id);
+
+			return;
+		}
+
+		final int encoding = Protocol.getEncoding(serverName);
+		final byte[][] parts = payload.getParts(encoding);
+
+		// Encoding may have interned a new server id, its table update must reach the server first
+		OutboundQueue.of(server).transmitHandshakes();
+
+		for (int part = 0; part < parts.length; part++) {
+			final byte[] data = parts[part];
+
+			if (Batcher.isEnabled(serverName) && Batcher.offer(server, data))
+				sentBytes.addAndGet(id, data.length);
+
+			else if (Fragments.shouldSplit(serverName, data.length)) {
+				for (final byte[] fragment : payload.getFragments(encoding, part)) {
+					sendPluginMessage(server, fragment);
+					sentBytes.addAndGet(id, fragment.length);
+				}
+
+			} else {
+				sendPluginMessage(server, data);
+				sentBytes.addAndGet(id, data.length);
+			}
+
+			sentPackets.incrementAndGet(id);
+		}
+	}
+
+	/*
+	 * Send one plugin message to the given server, in a sequenced envelope if it negotiated them
+	 */
+	static void sendPluginMessage(RegisteredServer server, byte[] data) {
+		final String serverName = server.getServerInfo().getName();
+
+		if (!LinkStats.isEnabled(serverName)) {
+			server.sendPluginMessage(VelocityControl.CHANNEL, data);
+
+			return;
+		}
+
+		synchronized (LinkStats.getSendLock(serverName)) {
+			server.sendPluginMessage(VelocityControl.CHANNEL, LinkStats.wrap(serverName, data));
+		}
+	}
+
+	/*
+	 * Count one encoding of a payload
+	 */
+	static void recordEncode() {
+		encodes.increment();
+	}
+
+	/**
+	 * Return the human readable relay statistics since startup
+	 *
+	 * @return
+	 */
+	public static List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+		long totalPackets = 0;
+		long totalBytes = 0;
+
+		for (final ProxyPacket packet : ProxyPacket.values()) {
+			final long packets = sentPackets.get(packet.getId());
+			final long bytes = sentBytes.get(packet.getId());
+
+			if (packets > 0)
+				lines.add(" " + packet + ": " + packets + " sent, " + bytes + " bytes");
+
+			totalPackets += packets;
+			totalBytes += bytes;
+		}
+
+		lines.add(0, "Relay: " + fanOuts.sum() + " payloads, " + unicasts.sum() + " unicasts (" + unicastsOffline.sum() + " to offline players), " + encodes.sum() + " encodings, " + outOfCluster.sum() + " skipped by cluster, " + withoutPermission.sum() + " by permission, " + totalPackets + " sent, " + totalBytes + " bytes");
+		lines.add(1, Compression.getStatistics());
+		lines.add(2, Fragments.getStatistics());
+		lines.add(3, Batcher.getStatistics());
+		lines.add(4, PermissionIndex.getInstance().getStatistics());
+		lines.add(5, StoreAndForward.getInstance().getStatistics());
+		lines.addAll(OutboundQueue.getStatistics());
+		lines.addAll(InboundExecutor.getStatistics());
+		lines.addAll(RateLimiter.getStatistics());
+		lines.addAll(LinkStats.getStatistics());
+
+		return lines;
+	}
+}
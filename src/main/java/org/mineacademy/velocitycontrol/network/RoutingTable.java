@@ -0,0 +1,148 @@
+package org.mineacademy.velocitycontrol.network;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Limits packets that only matter within a cluster, see {@link Settings.Clusters}, to the
+ * servers of the sender's cluster and the "global" cluster.
+ *
+ * Servers not listed in any cluster are global, they share data with every cluster
+ * and packets they send reach all servers.
+ *
+ * Packets addressed to one player are sent only to the server that player is on.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RoutingTable {
+
+	/**
+	 * The cluster of servers not listed in any cluster
+	 */
+	public static final int GLOBAL = 0;
+
+	/**
+	 * Returned by {@link #getScope(ProxyPacket, String)} for packets sent to all servers
+	 */
+	public static final int ANY = -1;
+
+	/**
+	 * Packets limited to the cluster of their sender
+	 */
+	private static final Set<ProxyPacket> SCOPED_PACKETS = Collections.unmodifiableSet(EnumSet.of(
+			ProxyPacket.CHANNEL,
+			ProxyPacket.SPY,
+			ProxyPacket.PLAYERS_CLUSTER_HEADER,
+			ProxyPacket.PLAYERS_CLUSTER_DATA));
+
+	/**
+	 * Packets whose first field is the unique id of the only player who needs them
+	 */
+	private static final Set<ProxyPacket> UNICAST_PACKETS = Collections.unmodifiableSet(EnumSet.of(
+			ProxyPacket.PLAIN_MESSAGE,
+			ProxyPacket.SIMPLECOMPONENT_MESSAGE,
+			ProxyPacket.TOAST,
+			ProxyPacket.SOUND,
+			ProxyPacket.REPLY_UPDATE,
+			ProxyPacket.MOTD));
+
+	/**
+	 * Cluster index by server name, empty when clusters are disabled, replaced as a whole on reload
+	 */
+	private static volatile Map<String, Integer> clusters = Collections.emptyMap();
+
+	/**
+	 * Rebuild the table from settings, call after they are loaded
+	 */
+	public static void load() {
+		final Settings.Clusters settings = Settings.getSettings().Clusters;
+		final Map<String, Integer> clusters = new HashMap<>();
+
+		if (settings != null && Boolean.TRUE.equals(settings.Enabled) && settings.List != null) {
+			int index = GLOBAL;
+
+			// Sorted so that indexes are stable across reloads of the same config
+			for (final String clusterName : new TreeSet<>(settings.List.keySet())) {
+				final int cluster = "global".equals(clusterName) ? GLOBAL : ++index;
+
+				for (final String serverName : settings.List.get(clusterName))
+					clusters.putIfAbsent(serverName, cluster);
+			}
+		}
+
+		RoutingTable.clusters = clusters;
+	}
+
+	/**
+	 * Return true if clusters are enabled and at least one server is in one
+	 *
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return !clusters.isEmpty();
+	}
+
+	/**
+	 * Return the cluster of the given server
+	 *
+	 * @param serverName
+	 * @return
+	 */
+	public static int getCluster(String serverName) {
+		final Integer cluster = clusters.get(serverName);
+
+		return cluster != null ? cluster : GLOBAL;
+	}
+
+	/**
+	 * Return the cluster the given packet is limited to, or {@link #ANY}
+	 *
+	 * @param action
+	 * @param senderName the server that sent the packet
+	 * @return
+	 */
+	public static int getScope(ProxyPacket action, String senderName) {
+		return SCOPED_PACKETS.contains(action) ? getCluster(senderName) : ANY;
+	}
+
+	/**
+	 * Return true if the given packet only needs to reach the server of the player
+	 * in its first field, see {@link Relay#unicast(Payload, java.util.UUID, int)}
+	 *
+	 * @param action
+	 * @return
+	 */
+	public static boolean isUnicast(ProxyPacket action) {
+		return UNICAST_PACKETS.contains(action);
+	}
+
+	/**
+	 * Return true if a packet limited to the given scope may be sent to the given server
+	 *
+	 * @param scope the cluster, or {@link #ANY}
+	 * @param serverName
+	 * @return
+	 */
+	public static boolean canReach(int scope, String serverName) {
+		return scope == ANY || scope == GLOBAL || canReachCluster(scope, getCluster(serverName));
+	}
+
+	/**
+	 * Return true if a packet limited to the given scope may be sent to servers in the given cluster
+	 *
+	 * @param scope the cluster, or {@link #ANY}
+	 * @param cluster
+	 * @return
+	 */
+	public static boolean canReachCluster(int scope, int cluster) {
+		return scope == ANY || scope == GLOBAL || cluster == GLOBAL || cluster == scope;
+	}
+}
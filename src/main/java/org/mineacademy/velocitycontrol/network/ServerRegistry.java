@@ -0,0 +1,222 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.VelocityControl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of which servers have players on them, updated from connect and
+ * disconnect events instead of asking every server on every packet.
+ *
+ * Relays iterate {@link #getOccupied()}, an array snapshot that is only rebuilt
+ * when a server becomes empty or gets its first player.
+ */
+public final class ServerRegistry {
+
+	/**
+	 * The singleton, registered as a listener on startup
+	 */
+	@Getter
+	private static final ServerRegistry instance = new ServerRegistry();
+
+	/**
+	 * Known servers by name
+	 */
+	private final Map<String, Entry> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * The server each player is connected to
+	 */
+	private final Map<UUID, Entry> players = new ConcurrentHashMap<>();
+
+	/**
+	 * Servers with players on them ordered by their id, replaced as a whole and never modified
+	 */
+	private volatile Entry[] occupied = new Entry[0];
+
+	/**
+	 * All known servers ordered by their id, replaced as a whole and never modified
+	 */
+	private volatile Entry[] all = new Entry[0];
+
+	private ServerRegistry() {
+	}
+
+	/**
+	 * Register all servers and players that are already online, e.g. when the plugin is reloaded
+	 */
+	public void load() {
+		for (final RegisteredServer server : VelocityControl.getServers())
+			this.getEntry(server);
+
+		for (final Player player : VelocityControl.getPlayers())
+			player.getCurrentServer().ifPresent(connection -> {
+				final Entry entry = this.getEntry(connection.getServer());
+
+				if (this.players.putIfAbsent(player.getUniqueId(), entry) == null)
+					this.join(entry);
+			});
+	}
+
+	@Subscribe(order = PostOrder.FIRST)
+	public void onConnect(ServerConnectedEvent event) {
+		final Entry entry = this.getEntry(event.getServer());
+		final Entry previous = this.players.put(event.getPlayer().getUniqueId(), entry);
+
+		if (previous == entry)
+			return;
+
+		if (previous != null)
+			this.leave(previous);
+
+		this.join(entry);
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onDisconnect(DisconnectEvent event) {
+		final Entry previous = this.players.remove(event.getPlayer().getUniqueId());
+
+		if (previous != null)
+			this.leave(previous);
+	}
+
+	private void join(Entry entry) {
+		if (entry.players.incrementAndGet() == 1)
+			this.rebuild();
+	}
+
+	private void leave(Entry entry) {
+		if (entry.players.decrementAndGet() == 0) {
+			this.rebuild();
+
+			StoreAndForward.getInstance().close(entry);
+		}
+	}
+
+	/*
+	 * Publish a new snapshot, the last rebuild after a change always sees it
+	 */
+	private synchronized void rebuild() {
+		final List<Entry> occupied = new ArrayList<>();
+
+		for (final Entry entry : this.servers.values())
+			if (entry.players.get() > 0)
+				occupied.add(entry);
+
+		final List<Entry> all = new ArrayList<>(this.servers.values());
+
+		occupied.sort(Comparator.comparingInt(Entry::getId));
+		all.sort(Comparator.comparingInt(Entry::getId));
+
+		this.occupied = occupied.toArray(new Entry[0]);
+		this.all = all.toArray(new Entry[0]);
+	}
+
+	/**
+	 * Return the entry of the given server, registering it on first use
+	 *
+	 * @param server
+	 * @return
+	 */
+	public Entry getEntry(RegisteredServer server) {
+		final Entry entry = this.servers.get(server.getServerInfo().getName());
+
+		if (entry != null)
+			return entry;
+
+		final Entry created = this.servers.computeIfAbsent(server.getServerInfo().getName(), name -> new Entry(server, name, Protocol.getServerId(name)));
+
+		this.rebuild();
+		return created;
+	}
+
+	/**
+	 * Return the entry of the server the given player is connected to, or null if unknown
+	 *
+	 * @param uniqueId
+	 * @return
+	 */
+	public Entry getServerOf(UUID uniqueId) {
+		return this.players.get(uniqueId);
+	}
+
+	/**
+	 * Return the servers with players on them, the array must not be modified
+	 *
+	 * @return
+	 */
+	public Entry[] getOccupied() {
+		return this.occupied;
+	}
+
+	/**
+	 * Return all known servers, the array must not be modified
+	 *
+	 * @return
+	 */
+	public Entry[] getAll() {
+		return this.all;
+	}
+
+	/**
+	 * A server as the relay sees it
+	 */
+	@Getter
+	public static final class Entry {
+
+		/**
+		 * The server
+		 */
+		private final RegisteredServer server;
+
+		/**
+		 * The server name as in Velocity config
+		 */
+		private final String name;
+
+		/**
+		 * The interned id, see {@link Protocol#getServerId(String)}
+		 */
+		private final int id;
+
+		/**
+		 * How many players are on it
+		 */
+		@Getter(lombok.AccessLevel.NONE)
+		private final AtomicInteger players = new AtomicInteger();
+
+		/**
+		 * The queue of packets waiting to be sent to it
+		 */
+		private final OutboundQueue queue;
+
+		private Entry(RegisteredServer server, String name, int id) {
+			this.server = server;
+			this.name = name;
+			this.id = id;
+			this.queue = OutboundQueue.of(server);
+		}
+
+		/**
+		 * Return how many players are on this server
+		 *
+		 * @return
+		 */
+		public int getPlayerCount() {
+			return this.players.get();
+		}
+	}
+}
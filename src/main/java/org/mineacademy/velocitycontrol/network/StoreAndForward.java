@@ -0,0 +1,258 @@
+package org.mineacademy.velocitycontrol.network;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import lombok.Getter;
+import org.mineacademy.velocitycontrol.foundation.Debugger;
+import org.mineacademy.velocitycontrol.listener.IncomingMessage;
+import org.mineacademy.velocitycontrol.model.ProxyPacket;
+import org.mineacademy.velocitycontrol.settings.Settings;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps packets that change state on servers, such as mutes, database updates and mail,
+ * for servers without players, since plugin messages can only be sent over a player
+ * connection. They are sent in one burst once the first player is connected to the server,
+ * saving the server from reloading everything from the database.
+ *
+ * Each server keeps up to {@link Settings.Network#Park_Capacity} packets for up to
+ * {@link Settings.Network#Park_Timeout} milliseconds. A newer packet replaces a waiting one
+ * that sets the same state, e.g. a mute of the same channel.
+ *
+ * Whether a mailbox is open is decided under its lock from the player count of the server
+ * in {@link ServerRegistry} at that moment, so connect and disconnect events racing each
+ * other cannot leave an occupied server with a closed mailbox, or an empty one open.
+ */
+public final class StoreAndForward {
+
+	/**
+	 * Packets kept for empty servers
+	 */
+	private static final Set<ProxyPacket> PARKED_PACKETS = Collections.unmodifiableSet(EnumSet.of(
+			ProxyPacket.MUTE,
+			ProxyPacket.DB_UPDATE,
+			ProxyPacket.MAIL_SYNC));
+
+	/**
+	 * The singleton, registered as a listener on startup
+	 */
+	@Getter
+	private static final StoreAndForward instance = new StoreAndForward();
+
+	/**
+	 * Mailboxes by server name
+	 */
+	private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	private final LongAdder parked = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder flushed = new LongAdder();
+
+	private StoreAndForward() {
+	}
+
+	/**
+	 * Return true if the given packet is kept for empty servers
+	 *
+	 * @param action
+	 * @return
+	 */
+	public static boolean isParked(ProxyPacket action) {
+		return PARKED_PACKETS.contains(action);
+	}
+
+	/**
+	 * Send the packet to the given server, or keep it until a player connects if it is empty
+	 *
+	 * @param entry
+	 * @param payload
+	 * @return false if the payload was dropped by the queue of the server
+	 */
+	public boolean offer(ServerRegistry.Entry entry, Payload payload) {
+		final Mailbox mailbox = this.getMailbox(entry);
+
+		synchronized (mailbox) {
+			if (mailbox.open)
+				return entry.getQueue().offer(payload);
+
+			final long now = System.currentTimeMillis();
+			final String key = getStateKey(payload);
+
+			this.expire(mailbox, now);
+
+			if (key != null)
+				for (final Iterator<Parked> it = mailbox.packets.iterator(); it.hasNext(); ) {
+					final Parked waiting = it.next();
+
+					if (waiting.payload.getAction() == payload.getAction() && key.equals(waiting.key)) {
+						it.remove();
+						this.coalesced.increment();
+
+						break;
+					}
+				}
+
+			if (mailbox.packets.size() >= Math.max(1, Settings.getSettings().Network.Park_Capacity)) {
+				mailbox.packets.pollFirst();
+				this.dropped.increment();
+			}
+
+			mailbox.packets.addLast(new Parked(payload, key, now + Settings.getSettings().Network.Park_Timeout));
+			this.parked.increment();
+
+			Debugger.debug("packet", "\tKept " + payload.getAction() + " for '" + entry.getName() + "' until a player connects");
+			return true;
+		}
+	}
+
+	@Subscribe(order = PostOrder.LAST)
+	public void onPostConnect(ServerPostConnectEvent event) {
+		event.getPlayer().getCurrentServer().ifPresent(connection -> this.open(ServerRegistry.getInstance().getEntry(connection.getServer())));
+	}
+
+	/*
+	 * Send the waiting packets of the given server if it still has a player,
+	 * and send further ones right away
+	 */
+	private void open(ServerRegistry.Entry entry) {
+		final Mailbox mailbox = this.getMailbox(entry);
+
+		synchronized (mailbox) {
+			// The player may have left again before the event reached us
+			if (mailbox.open || entry.getPlayerCount() == 0)
+				return;
+
+			this.expire(mailbox, System.currentTimeMillis());
+
+			if (!mailbox.packets.isEmpty())
+				Debugger.debug("packet", "Sending " + mailbox.packets.size() + " kept packets to '" + entry.getName() + "'");
+
+			for (Parked waiting; (waiting = mailbox.packets.pollFirst()) != null; ) {
+				entry.getQueue().offer(waiting.payload);
+				this.flushed.increment();
+			}
+
+			mailbox.open = true;
+		}
+	}
+
+	/**
+	 * Keep packets for the given server from now on if it is still empty, called when its last player leaves
+	 *
+	 * @param entry
+	 */
+	void close(ServerRegistry.Entry entry) {
+		final Mailbox mailbox = this.getMailbox(entry);
+
+		synchronized (mailbox) {
+			// A player may have joined since, its mailbox then stays open
+			if (entry.getPlayerCount() == 0)
+				mailbox.open = false;
+		}
+	}
+
+	private Mailbox getMailbox(ServerRegistry.Entry entry) {
+		final Mailbox mailbox = this.mailboxes.get(entry.getName());
+
+		return mailbox != null ? mailbox : this.mailboxes.computeIfAbsent(entry.getName(), name -> new Mailbox(entry.getPlayerCount() > 0));
+	}
+
+	/*
+	 * Drop packets kept for too long, they are ordered by when they expire
+	 */
+	private void expire(Mailbox mailbox, long now) {
+		while (!mailbox.packets.isEmpty() && mailbox.packets.peekFirst().expiresAt <= now) {
+			mailbox.packets.pollFirst();
+			this.expired.increment();
+		}
+	}
+
+	/*
+	 * Return what the packet sets, packets with the same key replace each other, or null
+	 */
+	private static String getStateKey(Payload payload) {
+		final ProxyPacket action = payload.getAction();
+
+		if (action != ProxyPacket.MUTE && action != ProxyPacket.DB_UPDATE)
+			return null;
+
+		final IncomingMessage message = payload.read();
+
+		try {
+			if (action == ProxyPacket.MUTE)
+				return message.validate(2).readString() + " " + message.readString();
+
+			// Origin server and player name come before the unique id
+			message.validate(3).readString();
+			message.readString();
+
+			return message.readString();
+
+		} catch (final IllegalArgumentException ex) {
+
+			// Keep it as it is, the server reports what is wrong with it
+			return null;
+		}
+	}
+
+	/**
+	 * Return the human readable store and forward statistics since startup
+	 *
+	 * @return
+	 */
+	public String getStatistics() {
+		int waiting = 0;
+
+		for (final Mailbox mailbox : this.mailboxes.values())
+			synchronized (mailbox) {
+				waiting += mailbox.packets.size();
+			}
+
+		return "Kept for empty servers: " + this.parked.sum() + " packets, " + waiting + " waiting, " + this.flushed.sum() + " sent on connect, "
+				+ this.coalesced.sum() + " replaced by newer, " + this.expired.sum() + " expired, " + this.dropped.sum() + " dropped when full";
+	}
+
+	/*
+	 * The packets waiting for one server, guarded by its own monitor
+	 */
+	private static final class Mailbox {
+
+		private final ArrayDeque<Parked> packets = new ArrayDeque<>();
+
+		/**
+		 * If the server has a player and packets are sent right away
+		 */
+		private boolean open;
+
+		private Mailbox(boolean open) {
+			this.open = open;
+		}
+	}
+
+	/*
+	 * A packet waiting for its server
+	 */
+	private static final class Parked {
+
+		private final Payload payload;
+		private final String key;
+		private final long expiresAt;
+
+		private Parked(Payload payload, String key, long expiresAt) {
+			this.payload = payload;
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
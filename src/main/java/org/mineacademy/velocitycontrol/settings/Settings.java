@@ -61,6 +61,7 @@ public final class Settings {
 		public ChatForwarding Chat_Forwarding;
 		public Clusters Clusters;
 		public Spy Spy;
+		public Network Network = new Network();
 		public boolean Debug;
 	}
 
@@ -107,6 +108,40 @@ public final class Settings {
 		public ArrayList<String> Spied_Commands;
 	}
 
+	/**
+	 * Network
+	 */
+	public static class Network {
+		public int Compression_Threshold = 512;
+		public int Fragment_Size = 30000;
+		public int Max_Reassembled_Size = 16 * 1024 * 1024;
+		public long Reassembly_Timeout = 10_000;
+		public long Batch_Window = 5;
+		public int Batch_Max_Size = 30000;
+		public int Queue_Capacity = 1024;
+		public long Queue_Block_Timeout = 1000;
+		public boolean Permission_Routing = false;
+		public long Permission_Refresh = 30_000;
+		public long Sync_Interval_Min = 250;
+		public long Sync_Interval_Max = 5000;
+		public long Full_Sync_Interval = 30_000;
+		public int Park_Capacity = 256;
+		public long Park_Timeout = 600_000;
+		public int Processing_Threads = 0;
+		public boolean Virtual_Threads = false;
+		public RateLimit Rate_Limit = new RateLimit();
+	}
+
+	/**
+	 * Packets per second each server may send
+	 */
+	public static class RateLimit {
+		public int Server = 0;
+		public int Packet = 0;
+		public Map<String, Integer> Packets = new HashMap<>();
+		public long Max_Delay = 250;
+	}
+
 	/**
 	 * A helper method to use {@link #getSettings().Server_Aliases} or return the default server name if alias not set
 	 *